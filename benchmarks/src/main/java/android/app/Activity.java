@@ -0,0 +1,16 @@
+package android.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+public class Activity extends Context {
+    @Override
+    public Object getSystemService(String name) {
+        return null;
+    }
+
+    @Override
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        return null;
+    }
+}
@@ -0,0 +1,41 @@
+package android.bluetooth;
+
+import android.bluetooth.le.BluetoothLeScanner;
+
+public class BluetoothAdapter {
+
+    public interface LeScanCallback {
+        void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord);
+    }
+
+    public BluetoothDevice getRemoteDevice(String address) {
+        return new BluetoothDevice(address);
+    }
+
+    public boolean isEnabled() {
+        return true;
+    }
+
+    public BluetoothLeScanner getBluetoothLeScanner() {
+        return null;
+    }
+
+    public boolean isOffloadedFilteringSupported() {
+        return false;
+    }
+
+    public boolean isOffloadedScanBatchingSupported() {
+        return false;
+    }
+
+    public boolean startLeScan(LeScanCallback callback) {
+        return true;
+    }
+
+    public boolean startLeScan(java.util.UUID[] serviceUuids, LeScanCallback callback) {
+        return true;
+    }
+
+    public void stopLeScan(LeScanCallback callback) {
+    }
+}
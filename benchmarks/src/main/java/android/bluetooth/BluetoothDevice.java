@@ -0,0 +1,50 @@
+package android.bluetooth;
+
+import android.content.Context;
+
+public class BluetoothDevice {
+    public static final int TRANSPORT_AUTO = 0;
+    public static final int TRANSPORT_LE = 2;
+    public static final int PHY_LE_1M = 1;
+    public static final int PHY_LE_2M = 2;
+    public static final int PHY_LE_1M_MASK = 1;
+    public static final int PHY_LE_2M_MASK = 2;
+    public static final int PHY_OPTION_NO_PREFERRED = 0;
+
+    private final String address;
+
+    public BluetoothDevice(String address) {
+        this.address = address;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return null;
+    }
+
+    public BluetoothGatt connectGatt(Context context, boolean autoConnect, BluetoothGattCallback callback) {
+        return null;
+    }
+
+    public BluetoothGatt connectGatt(Context context, boolean autoConnect, BluetoothGattCallback callback, int transport) {
+        return connectGatt(context, autoConnect, callback);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BluetoothDevice && address.equals(((BluetoothDevice) o).address);
+    }
+
+    @Override
+    public int hashCode() {
+        return address.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return address;
+    }
+}
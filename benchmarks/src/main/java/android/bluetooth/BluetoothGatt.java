@@ -0,0 +1,45 @@
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class BluetoothGatt implements BluetoothProfile {
+    public static final int GATT_SUCCESS = 0;
+    public static final int GATT_READ_NOT_PERMITTED = 2;
+    public static final int GATT_WRITE_NOT_PERMITTED = 3;
+    public static final int GATT_FAILURE = 257;
+    public static final int CONNECTION_PRIORITY_BALANCED = 0;
+    public static final int CONNECTION_PRIORITY_HIGH = 1;
+    public static final int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    protected BluetoothGatt() {
+    }
+
+    public BluetoothDevice getDevice() { return null; }
+    public List<BluetoothGattService> getServices() { return new ArrayList<BluetoothGattService>(); }
+    public BluetoothGattService getService(UUID uuid) {
+        for (BluetoothGattService service : getServices()) {
+            if (service.getUuid().equals(uuid)) {
+                return service;
+            }
+        }
+        return null;
+    }
+    public boolean connect() { return false; }
+    public void disconnect() {}
+    public void close() {}
+    public boolean discoverServices() { return false; }
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) { return false; }
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) { return false; }
+    public boolean readDescriptor(BluetoothGattDescriptor descriptor) { return false; }
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) { return false; }
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) { return false; }
+    public boolean readRemoteRssi() { return false; }
+    public boolean requestMtu(int mtu) { return false; }
+    public boolean requestConnectionPriority(int connectionPriority) { return false; }
+    public void setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {}
+
+    @Override
+    public List<BluetoothDevice> getConnectedDevices() { return new ArrayList<BluetoothDevice>(); }
+}
@@ -0,0 +1,77 @@
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class BluetoothGattCharacteristic {
+    public static final int PROPERTY_BROADCAST = 0x01;
+    public static final int PROPERTY_READ = 0x02;
+    public static final int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    public static final int PROPERTY_WRITE = 0x08;
+    public static final int PROPERTY_NOTIFY = 0x10;
+    public static final int PROPERTY_INDICATE = 0x20;
+    public static final int PROPERTY_SIGNED_WRITE = 0x40;
+    public static final int PROPERTY_EXTENDED_PROPS = 0x80;
+
+    public static final int PERMISSION_READ = 0x01;
+    public static final int PERMISSION_READ_ENCRYPTED = 0x02;
+    public static final int PERMISSION_READ_ENCRYPTED_MITM = 0x04;
+    public static final int PERMISSION_WRITE = 0x10;
+    public static final int PERMISSION_WRITE_ENCRYPTED = 0x20;
+    public static final int PERMISSION_WRITE_ENCRYPTED_MITM = 0x40;
+    public static final int PERMISSION_WRITE_SIGNED = 0x80;
+    public static final int PERMISSION_WRITE_SIGNED_MITM = 0x100;
+
+    public static final int WRITE_TYPE_DEFAULT = 0x02;
+    public static final int WRITE_TYPE_NO_RESPONSE = 0x01;
+    public static final int WRITE_TYPE_SIGNED = 0x04;
+
+    private final UUID uuid;
+    private final int instanceId;
+    private final int properties;
+    private final int permissions;
+    private final List<BluetoothGattDescriptor> descriptors = new ArrayList<BluetoothGattDescriptor>();
+    private BluetoothGattService service;
+    private byte[] value;
+    private int writeType = WRITE_TYPE_DEFAULT;
+
+    public BluetoothGattCharacteristic(UUID uuid, int properties, int permissions) {
+        this(uuid, 0, properties, permissions);
+    }
+
+    public BluetoothGattCharacteristic(UUID uuid, int instanceId, int properties, int permissions) {
+        this.uuid = uuid;
+        this.instanceId = instanceId;
+        this.properties = properties;
+        this.permissions = permissions;
+    }
+
+    void setService(BluetoothGattService service) { this.service = service; }
+
+    public boolean addDescriptor(BluetoothGattDescriptor descriptor) {
+        descriptors.add(descriptor);
+        descriptor.setCharacteristic(this);
+        return true;
+    }
+
+    public BluetoothGattService getService() { return service; }
+    public UUID getUuid() { return uuid; }
+    public int getInstanceId() { return instanceId; }
+    public int getProperties() { return properties; }
+    public int getPermissions() { return permissions; }
+    public int getWriteType() { return writeType; }
+    public void setWriteType(int writeType) { this.writeType = writeType; }
+    public byte[] getValue() { return value; }
+    public boolean setValue(byte[] value) { this.value = value; return true; }
+    public List<BluetoothGattDescriptor> getDescriptors() { return descriptors; }
+
+    public BluetoothGattDescriptor getDescriptor(UUID uuid) {
+        for (BluetoothGattDescriptor descriptor : descriptors) {
+            if (descriptor.getUuid().equals(uuid)) {
+                return descriptor;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,36 @@
+package android.bluetooth;
+
+import java.util.UUID;
+
+public class BluetoothGattDescriptor {
+    public static final byte[] ENABLE_NOTIFICATION_VALUE = {0x01, 0x00};
+    public static final byte[] ENABLE_INDICATION_VALUE = {0x02, 0x00};
+    public static final byte[] DISABLE_NOTIFICATION_VALUE = {0x00, 0x00};
+
+    public static final int PERMISSION_READ = 0x01;
+    public static final int PERMISSION_READ_ENCRYPTED = 0x02;
+    public static final int PERMISSION_READ_ENCRYPTED_MITM = 0x04;
+    public static final int PERMISSION_WRITE = 0x10;
+    public static final int PERMISSION_WRITE_ENCRYPTED = 0x20;
+    public static final int PERMISSION_WRITE_ENCRYPTED_MITM = 0x40;
+    public static final int PERMISSION_WRITE_SIGNED = 0x80;
+    public static final int PERMISSION_WRITE_SIGNED_MITM = 0x100;
+
+    private final UUID uuid;
+    private final int permissions;
+    private BluetoothGattCharacteristic characteristic;
+    private byte[] value;
+
+    public BluetoothGattDescriptor(UUID uuid, int permissions) {
+        this.uuid = uuid;
+        this.permissions = permissions;
+    }
+
+    void setCharacteristic(BluetoothGattCharacteristic characteristic) { this.characteristic = characteristic; }
+
+    public BluetoothGattCharacteristic getCharacteristic() { return characteristic; }
+    public UUID getUuid() { return uuid; }
+    public int getPermissions() { return permissions; }
+    public byte[] getValue() { return value; }
+    public boolean setValue(byte[] value) { this.value = value; return true; }
+}
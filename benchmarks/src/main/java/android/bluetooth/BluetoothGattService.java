@@ -0,0 +1,42 @@
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class BluetoothGattService {
+    public static final int SERVICE_TYPE_PRIMARY = 0;
+    public static final int SERVICE_TYPE_SECONDARY = 1;
+
+    private final UUID uuid;
+    private final int instanceId;
+    private final List<BluetoothGattCharacteristic> characteristics = new ArrayList<BluetoothGattCharacteristic>();
+
+    public BluetoothGattService(UUID uuid, int serviceType) {
+        this(uuid, 0, serviceType);
+    }
+
+    public BluetoothGattService(UUID uuid, int instanceId, int serviceType) {
+        this.uuid = uuid;
+        this.instanceId = instanceId;
+    }
+
+    public boolean addCharacteristic(BluetoothGattCharacteristic characteristic) {
+        characteristics.add(characteristic);
+        characteristic.setService(this);
+        return true;
+    }
+
+    public UUID getUuid() { return uuid; }
+    public int getInstanceId() { return instanceId; }
+    public List<BluetoothGattCharacteristic> getCharacteristics() { return characteristics; }
+
+    public BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+        for (BluetoothGattCharacteristic characteristic : characteristics) {
+            if (characteristic.getUuid().equals(uuid)) {
+                return characteristic;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,20 @@
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BluetoothManager {
+    private final BluetoothAdapter adapter;
+
+    public BluetoothManager(BluetoothAdapter adapter) {
+        this.adapter = adapter;
+    }
+
+    public BluetoothAdapter getAdapter() {
+        return adapter;
+    }
+
+    public List<BluetoothDevice> getConnectedDevices(int profile) {
+        return new ArrayList<BluetoothDevice>();
+    }
+}
@@ -0,0 +1,13 @@
+package android.bluetooth;
+
+import java.util.List;
+
+public interface BluetoothProfile {
+    int GATT = 7;
+    int STATE_DISCONNECTED = 0;
+    int STATE_CONNECTING = 1;
+    int STATE_CONNECTED = 2;
+    int STATE_DISCONNECTING = 3;
+
+    List<BluetoothDevice> getConnectedDevices();
+}
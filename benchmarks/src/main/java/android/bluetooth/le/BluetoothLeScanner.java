@@ -0,0 +1,15 @@
+package android.bluetooth.le;
+
+import java.util.List;
+
+public class BluetoothLeScanner {
+
+    public void startScan(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
+    }
+
+    public void stopScan(ScanCallback callback) {
+    }
+
+    public void flushPendingScanResults(ScanCallback callback) {
+    }
+}
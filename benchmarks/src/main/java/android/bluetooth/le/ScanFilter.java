@@ -0,0 +1,54 @@
+package android.bluetooth.le;
+
+import android.os.ParcelUuid;
+
+public final class ScanFilter {
+    private ParcelUuid serviceUuid;
+    private int manufacturerId = -1;
+    private byte[] manufacturerData;
+    private byte[] manufacturerDataMask;
+
+    public ParcelUuid getServiceUuid() {
+        return serviceUuid;
+    }
+
+    public int getManufacturerId() {
+        return manufacturerId;
+    }
+
+    public byte[] getManufacturerData() {
+        return manufacturerData;
+    }
+
+    public byte[] getManufacturerDataMask() {
+        return manufacturerDataMask;
+    }
+
+    public static final class Builder {
+        private final ScanFilter filter = new ScanFilter();
+
+        public Builder setServiceUuid(ParcelUuid serviceUuid) {
+            filter.serviceUuid = serviceUuid;
+            return this;
+        }
+
+        public Builder setManufacturerData(int manufacturerId, byte[] manufacturerData) {
+            return setManufacturerData(manufacturerId, manufacturerData, null);
+        }
+
+        public Builder setManufacturerData(int manufacturerId, byte[] manufacturerData, byte[] manufacturerDataMask) {
+            if (manufacturerData != null && manufacturerDataMask != null
+                    && manufacturerData.length != manufacturerDataMask.length) {
+                throw new IllegalArgumentException("size mismatch for manufacturerData and manufacturerDataMask");
+            }
+            filter.manufacturerId = manufacturerId;
+            filter.manufacturerData = manufacturerData;
+            filter.manufacturerDataMask = manufacturerDataMask;
+            return this;
+        }
+
+        public ScanFilter build() {
+            return filter;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package android.bluetooth.le;
+
+public final class ScanSettings {
+    public static final int SCAN_MODE_OPPORTUNISTIC = -1;
+    public static final int SCAN_MODE_LOW_POWER = 0;
+    public static final int SCAN_MODE_BALANCED = 1;
+    public static final int SCAN_MODE_LOW_LATENCY = 2;
+
+    public static final int MATCH_MODE_AGGRESSIVE = 1;
+    public static final int MATCH_MODE_STICKY = 2;
+
+    public static final int CALLBACK_TYPE_ALL_MATCHES = 1;
+
+    private int scanMode = SCAN_MODE_LOW_POWER;
+    private long reportDelayMillis;
+    private int matchMode = MATCH_MODE_AGGRESSIVE;
+
+    public int getScanMode() {
+        return scanMode;
+    }
+
+    public long getReportDelayMillis() {
+        return reportDelayMillis;
+    }
+
+    public int getMatchMode() {
+        return matchMode;
+    }
+
+    public static final class Builder {
+        private final ScanSettings settings = new ScanSettings();
+
+        public Builder setScanMode(int scanMode) {
+            settings.scanMode = scanMode;
+            return this;
+        }
+
+        public Builder setReportDelay(long reportDelayMillis) {
+            settings.reportDelayMillis = reportDelayMillis;
+            return this;
+        }
+
+        public Builder setMatchMode(int matchMode) {
+            settings.matchMode = matchMode;
+            return this;
+        }
+
+        public ScanSettings build() {
+            return settings;
+        }
+    }
+}
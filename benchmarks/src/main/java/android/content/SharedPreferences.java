@@ -0,0 +1,21 @@
+package android.content;
+
+public interface SharedPreferences {
+    String getString(String key, String defValue);
+
+    boolean contains(String key);
+
+    Editor edit();
+
+    interface Editor {
+        Editor putString(String key, String value);
+
+        Editor remove(String key);
+
+        Editor clear();
+
+        void apply();
+
+        boolean commit();
+    }
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+import java.util.UUID;
+
+public final class ParcelUuid {
+    private final UUID uuid;
+
+    public ParcelUuid(UUID uuid) {
+        this.uuid = uuid;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+}
@@ -0,0 +1,4 @@
+package android.telecom;
+
+public final class Call {
+}
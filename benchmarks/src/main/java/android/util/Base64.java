@@ -0,0 +1,18 @@
+package android.util;
+
+public final class Base64 {
+    public static final int DEFAULT = 0;
+    public static final int NO_WRAP = 2;
+
+    public static String encodeToString(byte[] input, int flags) {
+        return java.util.Base64.getEncoder().encodeToString(input);
+    }
+
+    public static String encodeToString(byte[] input, int offset, int len, int flags) {
+        return java.util.Base64.getEncoder().encodeToString(java.util.Arrays.copyOfRange(input, offset, offset + len));
+    }
+
+    public static byte[] decode(String str, int flags) {
+        return java.util.Base64.getDecoder().decode(str);
+    }
+}
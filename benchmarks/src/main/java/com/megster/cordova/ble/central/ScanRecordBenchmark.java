@@ -0,0 +1,90 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything that happens to an advertisement between onLeScan and the scan callback.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScanRecordBenchmark {
+
+    // flags, two 16 bit service UUIDs, complete local name, manufacturer data, zero padded to 62 bytes
+    static final byte[] SCAN_RECORD = new byte[62];
+
+    static {
+        byte[] record = {
+                0x02, 0x01, 0x06,
+                0x05, 0x03, 0x0d, 0x18, 0x0f, 0x18,
+                0x09, 0x09, 'H', 'R', 'M', '-', '1', '2', '3', '4',
+                0x07, (byte) 0xff, 0x59, 0x00, 0x01, 0x02, 0x03, 0x04
+        };
+        System.arraycopy(record, 0, SCAN_RECORD, 0, record.length);
+    }
+
+    private byte[] scanRecord = SCAN_RECORD;
+    private UUID[] serviceFilter = { UUIDHelper.uuidFromString("180f") };
+    private byte[] manufacturerData = { 0x01, 0x02 };
+    private Peripheral peripheral;
+    private DuplicateFilter duplicateFilter;
+
+    @Setup
+    public void setup() throws JSONException {
+        peripheral = new Peripheral(new BluetoothDevice("BD:92:2A:4B:23:3A"), -60, scanRecord);
+        duplicateFilter = new DuplicateFilter(ScanOptions.fromJSON(new JSONObject("{\"duplicates\": \"advertising\"}")));
+    }
+
+    @Benchmark
+    public boolean hasServiceUUID() {
+        return AdvertisingData.hasServiceUUID(scanRecord, serviceFilter);
+    }
+
+    @Benchmark
+    public boolean matchesManufacturerData() {
+        return AdvertisingData.matchesManufacturerData(scanRecord, 0x0059, manufacturerData, null);
+    }
+
+    @Benchmark
+    public boolean duplicateFilter() {
+        return duplicateFilter.shouldReport("BD:92:2A:4B:23:3A", -60, scanRecord);
+    }
+
+    @Benchmark
+    public JSONObject parseAdvertisingData() throws JSONException {
+        return new AdvertisingData(scanRecord).toJSON();
+    }
+
+    @Benchmark
+    public JSONObject peripheralRawAdvertising() {
+        return peripheral.asJSONObject(true, false);
+    }
+
+    @Benchmark
+    public JSONObject peripheralParsedAdvertising() {
+        return peripheral.asJSONObject(false, true);
+    }
+}
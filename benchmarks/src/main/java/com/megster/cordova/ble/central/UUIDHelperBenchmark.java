@@ -0,0 +1,53 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.megster.cordova.ble.central;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UUIDHelperBenchmark {
+
+    private String shortUUID = "180d";
+    private String longUUID = "6e400001-b5a3-f393-e0a9-e50e24dcca9e";
+    private UUID standardUUID = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+    private UUID customUUID = UUID.fromString(longUUID);
+
+    @Benchmark
+    public UUID uuidFromShortString() {
+        return UUIDHelper.uuidFromString(shortUUID);
+    }
+
+    @Benchmark
+    public UUID uuidFromLongString() {
+        return UUIDHelper.uuidFromString(longUUID);
+    }
+
+    @Benchmark
+    public String standardUUIDToString() {
+        return UUIDHelper.uuidToString(standardUUID);
+    }
+
+    @Benchmark
+    public String customUUIDToString() {
+        return UUIDHelper.uuidToString(customUUID);
+    }
+}
@@ -0,0 +1,35 @@
+package org.apache.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public class CallbackContext {
+    private final String callbackId;
+    private boolean finished;
+
+    public CallbackContext(String callbackId) {
+        this.callbackId = callbackId;
+    }
+
+    public String getCallbackId() { return callbackId; }
+    public boolean isFinished() { return finished; }
+
+    public void sendPluginResult(PluginResult pluginResult) {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = !pluginResult.getKeepCallback();
+        }
+    }
+
+    public void success() { sendPluginResult(new PluginResult(PluginResult.Status.OK)); }
+    public void success(String message) { sendPluginResult(new PluginResult(PluginResult.Status.OK, message)); }
+    public void success(JSONObject message) { sendPluginResult(new PluginResult(PluginResult.Status.OK, message)); }
+    public void success(JSONArray message) { sendPluginResult(new PluginResult(PluginResult.Status.OK, message)); }
+    public void success(byte[] message) { sendPluginResult(new PluginResult(PluginResult.Status.OK, message)); }
+    public void success(int message) { sendPluginResult(new PluginResult(PluginResult.Status.OK, message)); }
+    public void error(String message) { sendPluginResult(new PluginResult(PluginResult.Status.ERROR, message)); }
+    public void error(JSONObject message) { sendPluginResult(new PluginResult(PluginResult.Status.ERROR, message)); }
+    public void error(int message) { sendPluginResult(new PluginResult(PluginResult.Status.ERROR, message)); }
+}
@@ -0,0 +1,20 @@
+package org.apache.cordova;
+
+import org.json.JSONException;
+
+public class CordovaPlugin {
+    public CordovaInterface cordova;
+
+    protected void pluginInitialize() {
+    }
+
+    public boolean execute(String action, CordovaArgs args, CallbackContext callbackContext) throws JSONException {
+        return false;
+    }
+
+    public void onDestroy() {
+    }
+
+    public void onReset() {
+    }
+}
@@ -0,0 +1,8 @@
+package org.apache.cordova;
+
+public class LOG {
+    public static void d(String tag, String s) {}
+    public static void d(String tag, String s, Object... args) {}
+    public static void w(String tag, String s) {}
+    public static void e(String tag, String s) {}
+}
@@ -0,0 +1,45 @@
+package org.apache.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public class PluginResult {
+    public enum Status { NO_RESULT, OK, CLASS_NOT_FOUND_EXCEPTION, ILLEGAL_ACCESS_EXCEPTION, INSTANTIATION_EXCEPTION, MALFORMED_URL_EXCEPTION, IO_EXCEPTION, INVALID_ACTION, JSON_EXCEPTION, ERROR }
+
+    // the same messages Cordova sends when a result has no payload
+    public static String[] StatusMessages = new String[] {
+        "No result",
+        "OK",
+        "Class not found",
+        "Illegal access",
+        "Instantiation error",
+        "Malformed url",
+        "IO error",
+        "Invalid action",
+        "JSON error",
+        "Error"
+    };
+
+    private final Status status;
+    private final Object message;
+    private boolean keepCallback = false;
+
+    public PluginResult(Status status) { this(status, StatusMessages[status.ordinal()]); }
+    public PluginResult(Status status, String message) { this(status, (Object) message); }
+    public PluginResult(Status status, JSONArray message) { this(status, (Object) message); }
+    public PluginResult(Status status, JSONObject message) { this(status, (Object) message); }
+    public PluginResult(Status status, int i) { this(status, (Object) Integer.valueOf(i)); }
+    public PluginResult(Status status, float f) { this(status, (Object) Float.valueOf(f)); }
+    public PluginResult(Status status, boolean b) { this(status, (Object) Boolean.valueOf(b)); }
+    public PluginResult(Status status, byte[] data) { this(status, (Object) data); }
+
+    private PluginResult(Status status, Object message) {
+        this.status = status;
+        this.message = message;
+    }
+
+    public void setKeepCallback(boolean b) { this.keepCallback = b; }
+    public boolean getKeepCallback() { return keepCallback; }
+    public int getStatus() { return status.ordinal(); }
+    public Object getMessage() { return message; }
+}
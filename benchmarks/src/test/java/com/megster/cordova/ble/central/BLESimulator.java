@@ -0,0 +1,155 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.megster.cordova.ble.central;
+
+import android.app.Activity;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.content.Context;
+
+import org.apache.cordova.CordovaArgs;
+import org.apache.cordova.CordovaInterface;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A BLECentralPlugin wired to virtual peripherals instead of a radio. Calls go through execute like
+ * they do from JavaScript, so the plugin's lanes, Peripheral's command queue and GATT state machine all
+ * run for real. Callbacks from the virtual peripherals arrive on a small pool of radio threads.
+ */
+class BLESimulator {
+
+    private final ScheduledExecutorService radio;
+    private final ExecutorService cordovaThreadPool = Executors.newCachedThreadPool();
+    private final Map<String, VirtualDevice> devices = new ConcurrentHashMap<String, VirtualDevice>();
+    private final BLECentralPlugin plugin = new BLECentralPlugin();
+    private final VirtualScanner scanner = new VirtualScanner();
+
+    // set while the plugin scans with the legacy startLeScan
+    private volatile BluetoothAdapter.LeScanCallback legacyScan;
+    private volatile boolean leScannerAvailable = true;
+
+    BLESimulator(int radioThreads) {
+        radio = Executors.newScheduledThreadPool(radioThreads);
+
+        final BluetoothManager bluetoothManager = new BluetoothManager(new BluetoothAdapter() {
+            @Override
+            public BluetoothDevice getRemoteDevice(String address) {
+                // like BluetoothAdapter.checkBluetoothAddress
+                if (!address.matches("([0-9A-F]{2}:){5}[0-9A-F]{2}")) {
+                    throw new IllegalArgumentException(address + " is not a valid Bluetooth address");
+                }
+                return devices.get(address);
+            }
+
+            @Override
+            public BluetoothLeScanner getBluetoothLeScanner() {
+                return leScannerAvailable ? scanner : null;
+            }
+
+            @Override
+            public boolean isOffloadedScanBatchingSupported() {
+                return true;
+            }
+
+            @Override
+            public boolean startLeScan(LeScanCallback callback) {
+                legacyScan = callback;
+                return true;
+            }
+
+            @Override
+            public void stopLeScan(LeScanCallback callback) {
+                legacyScan = null;
+            }
+        });
+        final Activity activity = new Activity() {
+            @Override
+            public Object getSystemService(String name) {
+                return Context.BLUETOOTH_SERVICE.equals(name) ? bluetoothManager : null;
+            }
+        };
+        plugin.cordova = new CordovaInterface() {
+            @Override
+            public Activity getActivity() {
+                return activity;
+            }
+
+            @Override
+            public ExecutorService getThreadPool() {
+                return cordovaThreadPool;
+            }
+        };
+    }
+
+    VirtualDevice addDevice(String address, SimulationProfile profile) {
+        VirtualDevice device = new VirtualDevice(address, profile, radio);
+        devices.put(address, device);
+        return device;
+    }
+
+    VirtualScanner getScanner() {
+        return scanner;
+    }
+
+    boolean isLegacyScanning() {
+        return legacyScan != null;
+    }
+
+    // leaves only startLeScan, like an adapter without BluetoothLeScanner
+    void setLeScannerAvailable(boolean available) {
+        leScannerAvailable = available;
+    }
+
+    // an advertisement from a device nearby, heard by whichever scan is running
+    void advertise(String address, int rssi, byte[] scanRecord) {
+        BluetoothDevice device = new BluetoothDevice(address);
+        if (!scanner.advertise(device, rssi, scanRecord)) {
+            BluetoothAdapter.LeScanCallback callback = legacyScan;
+            if (callback != null) {
+                callback.onLeScan(device, rssi, scanRecord);
+            }
+        }
+    }
+
+    // arguments are sent like cordova.exec does, byte arrays become ArrayBuffers
+    RecordingCallbackContext execute(String action, Object... args) throws JSONException {
+        JSONArray json = new JSONArray();
+        for (Object arg : args) {
+            json.put(arg instanceof byte[] ? Base64.getEncoder().encodeToString((byte[]) arg) : arg);
+        }
+        RecordingCallbackContext callbackContext = new RecordingCallbackContext();
+        if (!plugin.execute(action, new CordovaArgs(json), callbackContext)) {
+            throw new IllegalArgumentException("Unknown action " + action);
+        }
+        return callbackContext;
+    }
+
+    void shutdown() throws InterruptedException {
+        radio.shutdownNow();
+        cordovaThreadPool.shutdownNow();
+        radio.awaitTermination(5, TimeUnit.SECONDS);
+        cordovaThreadPool.awaitTermination(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,166 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.megster.cordova.ble.central;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Many virtual peripherals at once, to measure command throughput and tail latency without radios.
+ * Only runs with -Dsimulator.load=true. Sizes can be changed with -Dsimulator.devices and -Dsimulator.writes.
+ */
+public class LoadSimulationTest {
+
+    private static final long TIMEOUT = 30000;
+    private static final String SERVICE = "ffe0";
+
+    private final int deviceCount = Integer.getInteger("simulator.devices", 200);
+    private final int writesPerDevice = Integer.getInteger("simulator.writes", 20);
+
+    private BLESimulator simulator;
+    private ExecutorService clients;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("load tests run with -Dsimulator.load=true", Boolean.getBoolean("simulator.load"));
+        simulator = new BLESimulator(4);
+        clients = Executors.newFixedThreadPool(64);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (simulator != null) {
+            clients.shutdownNow();
+            simulator.shutdown();
+        }
+    }
+
+    @Test
+    public void writesToManyDevices() throws Exception {
+        List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+        long started = System.nanoTime();
+        for (int i = 0; i < deviceCount; i++) {
+            final String address = address(i);
+            // a few devices lose callbacks or fail to connect, like in the field
+            SimulationProfile profile = new SimulationProfile(i).latency(500, 5000).failConnects(i % 10 == 0 ? 1 : 0);
+            simulator.addDevice(address, profile);
+            results.add(clients.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws Exception {
+                    JSONObject options = new JSONObject().put("reconnectAttempts", 2).put("reconnectDelay", 10);
+                    simulator.execute("connect", address, options).nextOk(TIMEOUT);
+                    long[] latencies = new long[writesPerDevice];
+                    for (int w = 0; w < writesPerDevice; w++) {
+                        RecordingCallbackContext write = simulator.execute("write", address, SERVICE, "ffe2", new byte[] { (byte) w });
+                        write.nextOk(TIMEOUT);
+                        latencies[w] = write.getLatencyMicros();
+                    }
+                    simulator.execute("disconnect", address).nextOk(TIMEOUT);
+                    return latencies;
+                }
+            }));
+        }
+
+        long[] all = new long[deviceCount * writesPerDevice];
+        int n = 0;
+        for (Future<long[]> result : results) {
+            for (long latency : result.get()) {
+                all[n++] = latency;
+            }
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        Arrays.sort(all);
+
+        System.out.println(String.format("%d devices, %d writes in %.2fs: %.0f writes/s, p50 %.2fms, p99 %.2fms, max %.2fms",
+                deviceCount, all.length, seconds, all.length / seconds,
+                percentile(all, 0.5) / 1000.0, percentile(all, 0.99) / 1000.0, all[all.length - 1] / 1000.0));
+        assertEquals(deviceCount * writesPerDevice, n);
+        assertTrue(all[0] >= 0);
+    }
+
+    @Test
+    public void highRateNotifications() throws Exception {
+        int devices = Math.max(1, deviceCount / 4);
+        List<RecordingCallbackContext> subscriptions = new ArrayList<RecordingCallbackContext>();
+        List<VirtualDevice> virtualDevices = new ArrayList<VirtualDevice>();
+        for (int i = 0; i < devices; i++) {
+            String address = address(i);
+            // a notification every millisecond from every device
+            virtualDevices.add(simulator.addDevice(address, new SimulationProfile(i).notifications(1000, 20)));
+            simulator.execute("connect", address).nextOk(TIMEOUT);
+            RecordingCallbackContext notify = simulator.execute("startNotification", address, SERVICE, "ffe1");
+            notify.nextNoResult(TIMEOUT);
+            subscriptions.add(notify);
+        }
+
+        // about a second's worth from every device
+        waitFor(() -> sent(virtualDevices) >= devices * 1000L);
+        for (int i = 0; i < devices; i++) {
+            simulator.execute("disconnect", address(i)).nextOk(TIMEOUT);
+        }
+
+        // a notification the radio sent just before the disconnect may still be on its way to the callback
+        waitFor(() -> delivered(subscriptions) == sent(virtualDevices));
+        System.out.println(String.format("%d devices sent %d notifications, %d delivered",
+                devices, sent(virtualDevices), delivered(subscriptions)));
+    }
+
+    private static long sent(List<VirtualDevice> devices) {
+        long sent = 0;
+        for (VirtualDevice device : devices) {
+            sent += device.getGatt().notificationsSent.get();
+        }
+        return sent;
+    }
+
+    private static long delivered(List<RecordingCallbackContext> subscriptions) {
+        long delivered = 0;
+        for (RecordingCallbackContext subscription : subscriptions) {
+            delivered += subscription.getDataCount();
+        }
+        return delivered;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private static String address(int i) {
+        return String.format("AA:BB:CC:%02X:%02X:%02X", (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff);
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * fraction) - 1)];
+    }
+}
@@ -0,0 +1,354 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.megster.cordova.ble.central;
+
+import org.apache.cordova.PluginResult;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives single virtual peripherals through the plugin: connect, discovery, reads, writes, notifications,
+ * dropped callbacks, 133 failures and disconnects.
+ */
+public class PeripheralSimulationTest {
+
+    private static final long TIMEOUT = 5000;
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final String SERVICE = "ffe0";
+
+    private BLESimulator simulator;
+
+    @Before
+    public void setUp() {
+        simulator = new BLESimulator(2);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        simulator.shutdown();
+    }
+
+    @Test
+    public void connectWriteNotifyDisconnect() throws Exception {
+        VirtualDevice device = simulator.addDevice(ADDRESS, new SimulationProfile(1).notifications(2000, 20));
+
+        RecordingCallbackContext connect = simulator.execute("connect", ADDRESS);
+        JSONObject peripheral = (JSONObject) connect.nextOk(TIMEOUT).getMessage();
+        assertEquals(ADDRESS, peripheral.getString("id"));
+        assertEquals(3, peripheral.getJSONArray("characteristics").length());
+
+        RecordingCallbackContext notify = simulator.execute("startNotification", ADDRESS, SERVICE, "ffe1");
+        notify.nextNoResult(TIMEOUT);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(notify.nextOk(TIMEOUT).getMessage() instanceof byte[]);
+        }
+
+        simulator.execute("write", ADDRESS, SERVICE, "ffe2", new byte[] { 1, 2, 3 }).nextOk(TIMEOUT);
+        assertEquals(1, device.getGatt().writes.get());
+
+        simulator.execute("disconnect", ADDRESS).nextOk(TIMEOUT);
+        assertTrue(device.getGatt().isClosed());
+        assertFalse(simulator.execute("isConnected", ADDRESS).next(TIMEOUT).getStatus() == PluginResult.Status.OK.ordinal());
+    }
+
+    @Test
+    public void badArgumentsReachTheErrorCallback() throws Exception {
+        simulator.addDevice(ADDRESS, new SimulationProfile(8));
+
+        PluginResult badAddress = simulator.execute("connect", "not-an-address").next(TIMEOUT);
+        assertEquals(PluginResult.Status.ERROR.ordinal(), badAddress.getStatus());
+
+        simulator.execute("connect", ADDRESS).nextOk(TIMEOUT);
+        PluginResult badUUID = simulator.execute("write", ADDRESS, SERVICE, "not-a-uuid", new byte[] { 1 }).next(TIMEOUT);
+        assertEquals(PluginResult.Status.ERROR.ordinal(), badUUID.getStatus());
+        PluginResult signedUUID = simulator.execute("write", ADDRESS, SERVICE, "-001", new byte[] { 1 }).next(TIMEOUT);
+        assertEquals(PluginResult.Status.ERROR.ordinal(), signedUUID.getStatus());
+
+        // the lane keeps going after the failure
+        simulator.execute("write", ADDRESS, SERVICE, "ffe2", new byte[] { 1 }).nextOk(TIMEOUT);
+    }
+
+    @Test
+    public void zeroPriorityIntervalIsRejected() throws Exception {
+        simulator.addDevice(ADDRESS, new SimulationProfile(18));
+
+        JSONObject options = new JSONObject().put("adaptivePriority", new JSONObject().put("interval", 0));
+        PluginResult rejected = simulator.execute("connect", ADDRESS, options).next(TIMEOUT);
+        assertEquals(PluginResult.Status.ERROR.ordinal(), rejected.getStatus());
+        assertTrue(String.valueOf(rejected.getMessage()).contains("interval"));
+
+        simulator.execute("connect", ADDRESS).nextOk(TIMEOUT);
+    }
+
+    @Test
+    public void secondConnectWhileConnectingIsRejected() throws Exception {
+        VirtualDevice device = simulator.addDevice(ADDRESS, new SimulationProfile(9).latency(100000, 100000));
+
+        RecordingCallbackContext first = simulator.execute("connect", ADDRESS);
+        PluginResult second = simulator.execute("connect", ADDRESS).next(TIMEOUT);
+        assertEquals(PluginResult.Status.ERROR.ordinal(), second.getStatus());
+
+        first.nextOk(TIMEOUT);
+        VirtualGatt gatt = device.getGatt();
+        simulator.execute("write", ADDRESS, SERVICE, "ffe2", new byte[] { 1 }).nextOk(TIMEOUT);
+        assertSame(gatt, device.getGatt());
+    }
+
+    @Test
+    public void disconnectWhileConnectingFailsConnect() throws Exception {
+        simulator.addDevice(ADDRESS, new SimulationProfile(12).latency(200000, 200000));
+
+        RecordingCallbackContext connect = simulator.execute("connect", ADDRESS);
+        simulator.execute("disconnect", ADDRESS).nextOk(TIMEOUT);
+
+        PluginResult cancelled = connect.next(TIMEOUT);
+        assertEquals(PluginResult.Status.ERROR.ordinal(), cancelled.getStatus());
+        assertEquals("Connection cancelled", cancelled.getMessage());
+
+        // and the address can be connected again
+        simulator.execute("connect", ADDRESS).nextOk(TIMEOUT);
+    }
+
+    @Test
+    public void commandsAfterDisconnectDontCancelIt() throws Exception {
+        VirtualDevice device = simulator.addDevice(ADDRESS, new SimulationProfile(13));
+        JSONObject options = new JSONObject().put("reconnectAttempts", 2).put("reconnectDelay", 10);
+        RecordingCallbackContext connect = simulator.execute("connect", ADDRESS, options);
+        connect.nextOk(TIMEOUT);
+
+        RecordingCallbackContext disconnect = simulator.execute("disconnect", ADDRESS);
+        PluginResult write = simulator.execute("write", ADDRESS, SERVICE, "ffe2", new byte[] { 1 }).next(TIMEOUT);
+        assertEquals(PluginResult.Status.ERROR.ordinal(), write.getStatus());
+        assertTrue(String.valueOf(write.getMessage()).endsWith("is disconnecting"));
+
+        disconnect.nextOk(TIMEOUT);
+        Thread.sleep(100);
+        // no reconnect, so connect wasn't resolved again
+        assertEquals(1, connect.getCount());
+        assertTrue(device.getGatt().isClosed());
+    }
+
+    @Test
+    public void closeDuringReconnectDisarmsTheWatchdog() throws Exception {
+        SimulationProfile profile = new SimulationProfile(14);
+        VirtualDevice device = simulator.addDevice(ADDRESS, profile);
+        JSONObject options = new JSONObject().put("reconnectAttempts", 2).put("reconnectDelay", 10).put("connectTimeout", 200);
+        simulator.execute("connect", ADDRESS, options).nextOk(TIMEOUT);
+
+        // the reconnect attempt takes longer than connectTimeout
+        profile.latency(1000000, 1000000);
+        VirtualGatt first = device.getGatt();
+        first.dropLink();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (device.getGatt() == first && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertNotSame(first, device.getGatt());
+
+        simulator.execute("disconnect", ADDRESS).nextOk(TIMEOUT);
+        Thread.sleep(400);
+
+        JSONObject stats = (JSONObject) simulator.execute("getStats").nextOk(TIMEOUT).getMessage();
+        JSONObject deviceStats = stats.getJSONObject("devices").getJSONObject(ADDRESS);
+        assertEquals(1, deviceStats.getLong("disconnects"));
+        assertFalse(deviceStats.getJSONObject("errors").has("133"));
+    }
+
+    @Test
+    public void reconnectsAfterGattError133() throws Exception {
+        simulator.addDevice(ADDRESS, new SimulationProfile(2).failConnects(2));
+
+        JSONObject options = new JSONObject().put("reconnectAttempts", 3).put("reconnectDelay", 10);
+        RecordingCallbackContext connect = simulator.execute("connect", ADDRESS, options);
+        connect.nextOk(TIMEOUT);
+
+        JSONObject stats = (JSONObject) simulator.execute("getStats").nextOk(TIMEOUT).getMessage();
+        JSONObject deviceStats = stats.getJSONObject("devices").getJSONObject(ADDRESS);
+        assertEquals(2, deviceStats.getJSONObject("errors").getLong("133"));
+        assertEquals(1, deviceStats.getJSONObject("connectTime").getLong("count"));
+    }
+
+    @Test
+    public void reconnectsAndRestoresNotificationsAfterLinkLoss() throws Exception {
+        VirtualDevice device = simulator.addDevice(ADDRESS, new SimulationProfile(3).notifications(2000, 20));
+
+        JSONObject options = new JSONObject().put("reconnectAttempts", 2).put("reconnectDelay", 10);
+        RecordingCallbackContext connect = simulator.execute("connect", ADDRESS, options);
+        connect.nextOk(TIMEOUT);
+        RecordingCallbackContext notify = simulator.execute("startNotification", ADDRESS, SERVICE, "ffe1");
+        notify.nextNoResult(TIMEOUT);
+        notify.nextOk(TIMEOUT);
+
+        VirtualGatt first = device.getGatt();
+        first.dropLink();
+        connect.nextOk(TIMEOUT);
+        assertNotSame(first, device.getGatt());
+
+        // notifications keep coming on the same callback once the new connection is up
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (device.getGatt().notificationsSent.get() < 3 && System.currentTimeMillis() < deadline) {
+            notify.nextOk(TIMEOUT);
+        }
+        assertTrue(device.getGatt().notificationsSent.get() >= 3);
+        assertEquals(1, device.getGatt().descriptorWrites.get());
+    }
+
+    @Test
+    public void droppedWriteCallbackTimesOut() throws Exception {
+        SimulationProfile profile = new SimulationProfile(4);
+        simulator.addDevice(ADDRESS, profile);
+
+        JSONObject options = new JSONObject().put("writeTimeout", 100);
+        simulator.execute("connect", ADDRESS, options).nextOk(TIMEOUT);
+
+        profile.dropCallbacks(1);
+        RecordingCallbackContext lost = simulator.execute("write", ADDRESS, SERVICE, "ffe2", new byte[] { 1 });
+        RecordingCallbackContext next = simulator.execute("write", ADDRESS, SERVICE, "ffe2", new byte[] { 2 });
+
+        PluginResult timedOut = lost.next(TIMEOUT);
+        assertEquals(PluginResult.Status.ERROR.ordinal(), timedOut.getStatus());
+        assertTrue(String.valueOf(timedOut.getMessage()).startsWith("Timed out"));
+        next.nextOk(TIMEOUT);
+    }
+
+    @Test
+    public void connectTimeoutCountsAsTimeoutNotError() throws Exception {
+        simulator.addDevice(ADDRESS, new SimulationProfile(15).latency(500000, 500000));
+
+        PluginResult failed = simulator.execute("connect", ADDRESS, new JSONObject().put("connectTimeout", 100)).next(TIMEOUT);
+        assertEquals(PluginResult.Status.ERROR.ordinal(), failed.getStatus());
+
+        JSONObject stats = (JSONObject) simulator.execute("getStats").nextOk(TIMEOUT).getMessage();
+        JSONObject deviceStats = stats.getJSONObject("devices").getJSONObject(ADDRESS);
+        assertEquals(1, deviceStats.getLong("timeouts"));
+        assertEquals(0, deviceStats.getJSONObject("errors").length());
+    }
+
+    @Test
+    public void serviceChangedKeepsCommandTimeout() throws Exception {
+        SimulationProfile profile = new SimulationProfile(10);
+        VirtualDevice device = simulator.addDevice(ADDRESS, profile);
+        simulator.execute("connect", ADDRESS, new JSONObject().put("writeTimeout", 200)).nextOk(TIMEOUT);
+
+        profile.dropCallbacks(1);
+        RecordingCallbackContext lost = simulator.execute("write", ADDRESS, SERVICE, "ffe2", new byte[] { 1 });
+        device.getGatt().serviceChanged();
+
+        PluginResult timedOut = lost.next(TIMEOUT);
+        assertEquals(PluginResult.Status.ERROR.ordinal(), timedOut.getStatus());
+        assertEquals("Timed out waiting for write on ffe2", timedOut.getMessage());
+        simulator.execute("write", ADDRESS, SERVICE, "ffe2", new byte[] { 2 }).nextOk(TIMEOUT);
+    }
+
+    @Test
+    public void rediscoveryTimeStartsAtServiceChanged() throws Exception {
+        VirtualDevice device = simulator.addDevice(ADDRESS, new SimulationProfile(17));
+        simulator.execute("connect", ADDRESS).nextOk(TIMEOUT);
+
+        Thread.sleep(300);
+        device.getGatt().serviceChanged();
+
+        JSONObject discoveryTime = null;
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            JSONObject stats = (JSONObject) simulator.execute("getStats").nextOk(TIMEOUT).getMessage();
+            discoveryTime = stats.getJSONObject("devices").getJSONObject(ADDRESS).getJSONObject("discoveryTime");
+            if (discoveryTime.getLong("count") == 2) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        assertEquals(2, discoveryTime.getLong("count"));
+        assertTrue(discoveryTime.getDouble("max") < 300);
+    }
+
+    @Test
+    public void stuckRediscoveryTimesOut() throws Exception {
+        SimulationProfile profile = new SimulationProfile(16);
+        VirtualDevice device = simulator.addDevice(ADDRESS, profile);
+        RecordingCallbackContext connect = simulator.execute("connect", ADDRESS, new JSONObject().put("discoveryTimeout", 100));
+        connect.nextOk(TIMEOUT);
+
+        profile.latency(400000, 400000);
+        device.getGatt().serviceChanged();
+
+        PluginResult dropped = connect.next(TIMEOUT);
+        assertEquals(PluginResult.Status.ERROR.ordinal(), dropped.getStatus());
+        JSONObject stats = (JSONObject) simulator.execute("getStats").nextOk(TIMEOUT).getMessage();
+        assertEquals(1, stats.getJSONObject("devices").getJSONObject(ADDRESS).getLong("timeouts"));
+    }
+
+    @Test
+    public void coalescedBatchesStayWithinMaxBytes() throws Exception {
+        simulator.addDevice(ADDRESS, new SimulationProfile(11).notifications(1000, 20));
+        simulator.execute("connect", ADDRESS).nextOk(TIMEOUT);
+
+        JSONObject options = new JSONObject().put("maxBytes", 100).put("flushInterval", 60000);
+        RecordingCallbackContext notify = simulator.execute("startNotification", ADDRESS, SERVICE, "ffe1", options);
+        notify.nextNoResult(TIMEOUT);
+        for (int i = 0; i < 3; i++) {
+            byte[] batch = (byte[]) notify.nextOk(TIMEOUT).getMessage();
+            // three 30 byte frames fit, a fourth would not
+            assertEquals(3 * (NotificationBuffer.FRAME_HEADER + 20), batch.length);
+        }
+    }
+
+    @Test
+    public void secondSubscriberSkipsDescriptorWrite() throws Exception {
+        VirtualDevice device = simulator.addDevice(ADDRESS, new SimulationProfile(5).notifications(2000, 20));
+        simulator.execute("connect", ADDRESS).nextOk(TIMEOUT);
+
+        RecordingCallbackContext first = simulator.execute("startNotification", ADDRESS, SERVICE, "ffe1");
+        first.nextNoResult(TIMEOUT);
+        RecordingCallbackContext second = simulator.execute("startNotification", ADDRESS, SERVICE, "ffe1");
+        second.nextNoResult(TIMEOUT);
+
+        second.nextOk(TIMEOUT);
+        first.nextOk(TIMEOUT);
+        assertEquals(1, device.getGatt().descriptorWrites.get());
+
+        simulator.execute("stopNotification", ADDRESS, SERVICE, "ffe1").nextOk(TIMEOUT);
+        assertEquals(2, device.getGatt().descriptorWrites.get());
+        // both kept callbacks are released
+        assertTrue(first.isFinished());
+        assertTrue(second.isFinished());
+    }
+
+    @Test
+    public void concurrentReadsShareOneGattRead() throws Exception {
+        VirtualDevice device = simulator.addDevice(ADDRESS, new SimulationProfile(6).latency(50000, 50000));
+        simulator.execute("connect", ADDRESS).nextOk(TIMEOUT);
+
+        RecordingCallbackContext first = simulator.execute("read", ADDRESS, SERVICE, "ffe3");
+        RecordingCallbackContext second = simulator.execute("read", ADDRESS, SERVICE, "ffe3");
+        assertArrayEquals((byte[]) first.nextOk(TIMEOUT).getMessage(), (byte[]) second.nextOk(TIMEOUT).getMessage());
+        assertEquals(1, device.getGatt().reads.get());
+    }
+
+    @Test
+    public void cachedReadsStayOffTheAir() throws Exception {
+        VirtualDevice device = simulator.addDevice(ADDRESS, new SimulationProfile(7));
+        JSONObject options = new JSONObject().put("readCache", new JSONObject().put("ffe3", 60000));
+        simulator.execute("connect", ADDRESS, options).nextOk(TIMEOUT);
+
+        byte[] value = (byte[]) simulator.execute("read", ADDRESS, SERVICE, "ffe3").nextOk(TIMEOUT).getMessage();
+        byte[] cached = (byte[]) simulator.execute("read", ADDRESS, SERVICE, "ffe3").nextOk(TIMEOUT).getMessage();
+        assertArrayEquals(value, cached);
+        assertEquals(1, device.getGatt().reads.get());
+    }
+}
@@ -0,0 +1,98 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.megster.cordova.ble.central;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for the JavaScript side of a callback. Keeps every result the plugin sends, and when the
+ * first one arrived, so tests can wait for results and measure latency.
+ */
+class RecordingCallbackContext extends CallbackContext {
+
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    private final BlockingQueue<PluginResult> results = new LinkedBlockingQueue<PluginResult>();
+    private final long created = System.nanoTime();
+    private volatile long firstResult;
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicInteger dataCount = new AtomicInteger();
+
+    RecordingCallbackContext() {
+        super("simulator" + ids.incrementAndGet());
+    }
+
+    @Override
+    public void sendPluginResult(PluginResult pluginResult) {
+        // Cordova drops results for a callback that is already finished
+        if (isFinished()) {
+            return;
+        }
+        if (firstResult == 0) {
+            firstResult = System.nanoTime();
+        }
+        count.incrementAndGet();
+        if (pluginResult.getMessage() instanceof byte[]) {
+            dataCount.incrementAndGet();
+        }
+        results.add(pluginResult);
+        super.sendPluginResult(pluginResult);
+    }
+
+    PluginResult next(long timeoutMillis) throws InterruptedException {
+        PluginResult result = results.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        if (result == null) {
+            throw new AssertionError("No result for " + getCallbackId() + " after " + timeoutMillis + "ms");
+        }
+        return result;
+    }
+
+    // waits for the next result and fails unless it is OK
+    PluginResult nextOk(long timeoutMillis) throws InterruptedException {
+        PluginResult result = next(timeoutMillis);
+        if (result.getStatus() != PluginResult.Status.OK.ordinal()) {
+            throw new AssertionError("Expected OK for " + getCallbackId() + " but got " + result.getMessage());
+        }
+        return result;
+    }
+
+    // waits for the next result and fails unless it is NO_RESULT, e.g. a subscription being kept open
+    PluginResult nextNoResult(long timeoutMillis) throws InterruptedException {
+        PluginResult result = next(timeoutMillis);
+        if (result.getStatus() != PluginResult.Status.NO_RESULT.ordinal()) {
+            throw new AssertionError("Expected NO_RESULT for " + getCallbackId() + " but got " + result.getMessage());
+        }
+        return result;
+    }
+
+    int getCount() {
+        return count.get();
+    }
+
+    // results carrying a value, e.g. notifications
+    int getDataCount() {
+        return dataCount.get();
+    }
+
+    // from the call into the plugin to its first result
+    long getLatencyMicros() {
+        return firstResult == 0 ? -1 : (firstResult - created) / 1000;
+    }
+}
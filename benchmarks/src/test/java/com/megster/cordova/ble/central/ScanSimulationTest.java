@@ -0,0 +1,234 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.megster.cordova.ble.central;
+
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Scanning through BluetoothLeScanner and the legacy startLeScan, with advertisements from the simulator.
+ */
+public class ScanSimulationTest {
+
+    private static final long TIMEOUT = 5000;
+
+    // flags, then the 16 bit heart rate service
+    private static final byte[] HEART_RATE = { 2, 0x01, 0x06, 3, 0x03, 0x0d, 0x18 };
+    // flags, then manufacturer data for company 0x004c
+    private static final byte[] BEACON = { 2, 0x01, 0x06, 5, (byte) 0xff, 0x4c, 0x00, 0x02, 0x15 };
+
+    private BLESimulator simulator;
+
+    @Before
+    public void setUp() {
+        simulator = new BLESimulator(1);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        simulator.shutdown();
+    }
+
+    @Test
+    public void serviceFilterRunsInTheController() throws Exception {
+        RecordingCallbackContext scan = startScan(new JSONArray().put("180d"), new JSONObject());
+        VirtualScanner scanner = simulator.getScanner();
+        assertEquals(1, scanner.getFilters().size());
+
+        simulator.advertise("00:00:00:00:00:01", -50, BEACON);
+        simulator.advertise("00:00:00:00:00:02", -60, HEART_RATE);
+
+        JSONObject device = (JSONObject) scan.nextOk(TIMEOUT).getMessage();
+        assertEquals("00:00:00:00:00:02", device.getString("id"));
+        assertEquals(2, scanner.advertisements.get());
+        assertEquals(1, scanner.delivered.get());
+        assertFalse(simulator.isLegacyScanning());
+    }
+
+    @Test
+    public void advertisementIsOnlyParsedOnRequest() throws Exception {
+        RecordingCallbackContext scan = startScan(new JSONArray(), new JSONObject());
+        simulator.advertise("00:00:00:00:00:01", -50, HEART_RATE);
+        JSONObject device = (JSONObject) scan.nextOk(TIMEOUT).getMessage();
+        assertTrue(device.has("advertising"));
+        assertFalse(device.has("advertisement"));
+
+        scan = startScan(new JSONArray(), new JSONObject().put("parseAdvertising", true));
+        simulator.advertise("00:00:00:00:00:01", -50, HEART_RATE);
+        assertTrue(((JSONObject) scan.nextOk(TIMEOUT).getMessage()).has("advertisement"));
+    }
+
+    @Test
+    public void unknownDuplicatesPolicyIsRejected() throws Exception {
+        RecordingCallbackContext scan = simulator.execute("startScan", new JSONArray(), new JSONObject().put("duplicates", "changed"));
+        assertEquals(PluginResult.Status.ERROR.ordinal(), scan.next(TIMEOUT).getStatus());
+        assertFalse(simulator.getScanner().isScanning());
+    }
+
+    @Test
+    public void duplicateFilterForgetsTheLeastRecentDevices() throws Exception {
+        RecordingCallbackContext scan = startScan(new JSONArray(), new JSONObject().put("duplicates", "once"));
+        simulator.advertise("00:00:00:00:00:00", -50, HEART_RATE);
+        simulator.advertise("00:00:00:00:00:00", -50, HEART_RATE);
+        assertEquals(2, scan.getCount());
+
+        for (int i = 1; i <= DuplicateFilter.MAX_DEVICES; i++) {
+            simulator.advertise(String.format("00:00:00:00:%02X:%02X", i >> 8, i & 0xff), -50, HEART_RATE);
+        }
+        // the first device was pushed out, so it counts as new again
+        simulator.advertise("00:00:00:00:00:00", -50, HEART_RATE);
+        assertEquals(DuplicateFilter.MAX_DEVICES + 3, scan.getCount());
+    }
+
+    @Test
+    public void manufacturerFilterRunsInTheController() throws Exception {
+        JSONObject options = new JSONObject().put("manufacturerId", 0x004c).put("manufacturerData", new JSONArray().put(0x02));
+        RecordingCallbackContext scan = startScan(new JSONArray(), options);
+
+        simulator.advertise("00:00:00:00:00:01", -50, HEART_RATE);
+        simulator.advertise("00:00:00:00:00:02", -60, BEACON);
+
+        JSONObject device = (JSONObject) scan.nextOk(TIMEOUT).getMessage();
+        assertEquals("00:00:00:00:00:02", device.getString("id"));
+        assertEquals(1, simulator.getScanner().delivered.get());
+    }
+
+    @Test
+    public void reportDelayBatchesInTheController() throws Exception {
+        RecordingCallbackContext scan = startScan(new JSONArray(), new JSONObject().put("reportDelay", 500).put("scanMode", "lowPower"));
+        VirtualScanner scanner = simulator.getScanner();
+        assertEquals(500, scanner.getSettings().getReportDelayMillis());
+        assertEquals(android.bluetooth.le.ScanSettings.SCAN_MODE_LOW_POWER, scanner.getSettings().getScanMode());
+
+        for (int i = 0; i < 3; i++) {
+            simulator.advertise("00:00:00:00:00:0" + i, -50, HEART_RATE);
+        }
+        assertEquals(1, scan.getCount());
+
+        scanner.reportBatch();
+        for (int i = 0; i < 3; i++) {
+            scan.nextOk(TIMEOUT);
+        }
+    }
+
+    @Test
+    public void fallsBackToStartLeScanWhenSettingsAreRejected() throws Exception {
+        simulator.getScanner().rejectSettings = true;
+        RecordingCallbackContext scan = startScan(new JSONArray().put("180d"), new JSONObject());
+        assertTrue(simulator.isLegacyScanning());
+
+        simulator.advertise("00:00:00:00:00:01", -50, BEACON);
+        simulator.advertise("00:00:00:00:00:02", -60, HEART_RATE);
+
+        // the service filter still applies, in software this time
+        JSONObject device = (JSONObject) scan.nextOk(TIMEOUT).getMessage();
+        assertEquals("00:00:00:00:00:02", device.getString("id"));
+
+        simulator.execute("stopScan").nextOk(TIMEOUT);
+        assertFalse(simulator.isLegacyScanning());
+    }
+
+    @Test
+    public void usesStartLeScanWithoutLeScanner() throws Exception {
+        simulator.setLeScannerAvailable(false);
+        startScan(new JSONArray(), new JSONObject());
+        assertTrue(simulator.isLegacyScanning());
+    }
+
+    @Test
+    public void legacyScanOption() throws Exception {
+        startScan(new JSONArray(), new JSONObject().put("legacyScan", true));
+        assertTrue(simulator.isLegacyScanning());
+        assertFalse(simulator.getScanner().isScanning());
+    }
+
+    @Test
+    public void newScanReplacesRunningScan() throws Exception {
+        startScan(new JSONArray(), new JSONObject().put("legacyScan", true));
+        startScan(new JSONArray(), new JSONObject());
+        assertFalse(simulator.isLegacyScanning());
+        assertTrue(simulator.getScanner().isScanning());
+
+        simulator.execute("stopScan").nextOk(TIMEOUT);
+        assertFalse(simulator.getScanner().isScanning());
+    }
+
+    @Test
+    public void scanStopsAfterSeconds() throws Exception {
+        RecordingCallbackContext scan = simulator.execute("scan", new JSONArray(), 0.2);
+        assertEquals(PluginResult.Status.NO_RESULT.ordinal(), scan.next(TIMEOUT).getStatus());
+        assertTrue(simulator.getScanner().isScanning());
+        waitFor(() -> !simulator.getScanner().isScanning());
+    }
+
+    @Test
+    public void dutyCycleRestartsTheScan() throws Exception {
+        startScan(new JSONArray(), new JSONObject().put("scanWindow", 50).put("scanInterval", 150));
+        VirtualScanner scanner = simulator.getScanner();
+        waitFor(() -> !scanner.isScanning());
+        waitFor(() -> scanner.isScanning() && scanner.starts.get() >= 3);
+
+        simulator.execute("stopScan").nextOk(TIMEOUT);
+        int starts = scanner.starts.get();
+        Thread.sleep(300);
+        assertEquals(starts, scanner.starts.get());
+        assertFalse(scanner.isScanning());
+    }
+
+    @Test
+    public void pausesWhileConnecting() throws Exception {
+        simulator.addDevice("00:00:00:00:00:01", new SimulationProfile(1).latency(200000, 200000));
+        startScan(new JSONArray(), new JSONObject().put("pauseWhileBusy", true).put("resumeDelay", 50));
+        VirtualScanner scanner = simulator.getScanner();
+
+        RecordingCallbackContext connect = simulator.execute("connect", "00:00:00:00:00:01");
+        waitFor(() -> !scanner.isScanning());
+        connect.nextOk(TIMEOUT);
+        waitFor(scanner::isScanning);
+        assertEquals(2, scanner.starts.get());
+    }
+
+    @Test
+    public void keepsScanningWhileConnectingByDefault() throws Exception {
+        simulator.addDevice("00:00:00:00:00:01", new SimulationProfile(1));
+        startScan(new JSONArray(), new JSONObject());
+        simulator.execute("connect", "00:00:00:00:00:01").nextOk(TIMEOUT);
+        assertEquals(1, simulator.getScanner().starts.get());
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    // returns once the scan is running
+    private RecordingCallbackContext startScan(JSONArray services, JSONObject options) throws Exception {
+        RecordingCallbackContext scan = simulator.execute("startScan", services, options);
+        assertEquals(PluginResult.Status.NO_RESULT.ordinal(), scan.next(TIMEOUT).getStatus());
+        return scan;
+    }
+}
@@ -0,0 +1,95 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.megster.cordova.ble.central;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How a virtual peripheral behaves: how long each GATT callback takes, which callbacks never arrive,
+ * how many connection attempts fail with status 133 and how fast it sends notifications.
+ */
+class SimulationProfile {
+
+    private long minLatencyMicros = 1000;
+    private long maxLatencyMicros = 3000;
+    private double dropRate = 0;
+    private final AtomicInteger connectFailures = new AtomicInteger();
+    private final AtomicInteger droppedCallbacks = new AtomicInteger();
+    private long notificationIntervalMicros = 0;
+    private int notificationSize = 20;
+    private final Random random;
+
+    SimulationProfile(long seed) {
+        random = new Random(seed);
+    }
+
+    // each callback arrives after a uniformly distributed delay in this range
+    synchronized SimulationProfile latency(long minMicros, long maxMicros) {
+        this.minLatencyMicros = minMicros;
+        this.maxLatencyMicros = maxMicros;
+        return this;
+    }
+
+    // chance that a read, write or descriptor write callback is never delivered
+    SimulationProfile dropRate(double dropRate) {
+        this.dropRate = dropRate;
+        return this;
+    }
+
+    // the next count connection attempts fail with GATT error 133
+    SimulationProfile failConnects(int count) {
+        connectFailures.set(count);
+        return this;
+    }
+
+    // the next count read, write or descriptor write callbacks are never delivered
+    SimulationProfile dropCallbacks(int count) {
+        droppedCallbacks.set(count);
+        return this;
+    }
+
+    // 0 for no notifications
+    SimulationProfile notifications(long intervalMicros, int size) {
+        this.notificationIntervalMicros = intervalMicros;
+        this.notificationSize = size;
+        return this;
+    }
+
+    synchronized long nextLatencyMicros() {
+        if (maxLatencyMicros <= minLatencyMicros) {
+            return minLatencyMicros;
+        }
+        return minLatencyMicros + (long) (random.nextDouble() * (maxLatencyMicros - minLatencyMicros));
+    }
+
+    synchronized boolean shouldDrop() {
+        if (droppedCallbacks.get() > 0 && droppedCallbacks.getAndDecrement() > 0) {
+            return true;
+        }
+        return dropRate > 0 && random.nextDouble() < dropRate;
+    }
+
+    boolean shouldFailConnect() {
+        return connectFailures.get() > 0 && connectFailures.getAndDecrement() > 0;
+    }
+
+    long getNotificationIntervalMicros() {
+        return notificationIntervalMicros;
+    }
+
+    int getNotificationSize() {
+        return notificationSize;
+    }
+}
@@ -0,0 +1,59 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.content.Context;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * A peripheral that only exists in memory. Each connectGatt returns a new VirtualGatt, like Android.
+ */
+class VirtualDevice extends BluetoothDevice {
+
+    private final SimulationProfile profile;
+    private final ScheduledExecutorService radio;
+    private volatile VirtualGatt currentGatt;
+
+    VirtualDevice(String address, SimulationProfile profile, ScheduledExecutorService radio) {
+        super(address);
+        this.profile = profile;
+        this.radio = radio;
+    }
+
+    @Override
+    public String getName() {
+        return "Virtual " + getAddress();
+    }
+
+    @Override
+    public BluetoothGatt connectGatt(Context context, boolean autoConnect, BluetoothGattCallback callback) {
+        VirtualGatt gatt = new VirtualGatt(this, callback, profile, radio);
+        currentGatt = gatt;
+        gatt.startConnecting(profile.shouldFailConnect());
+        return gatt;
+    }
+
+    SimulationProfile getProfile() {
+        return profile;
+    }
+
+    // the most recent connection, null before the first connect
+    VirtualGatt getGatt() {
+        return currentGatt;
+    }
+}
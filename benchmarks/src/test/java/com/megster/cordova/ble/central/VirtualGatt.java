@@ -0,0 +1,257 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A GATT connection to a VirtualDevice. Operations return straight away and their callbacks arrive later
+ * on the radio threads, after the delay the profile asks for. Nothing is delivered after close().
+ *
+ * The device has one service with a notify characteristic, a write characteristic and a read
+ * characteristic whose value counts the reads.
+ */
+class VirtualGatt extends BluetoothGatt {
+
+    static final UUID SERVICE = UUIDHelper.uuidFromString("ffe0");
+    static final UUID NOTIFY = UUIDHelper.uuidFromString("ffe1");
+    static final UUID WRITE = UUIDHelper.uuidFromString("ffe2");
+    static final UUID READ = UUIDHelper.uuidFromString("ffe3");
+    static final UUID CCCD = UUIDHelper.uuidFromString("2902");
+
+    static final int GATT_ERROR = 133;
+    static final int GATT_CONN_TIMEOUT = 8;
+
+    private final VirtualDevice device;
+    private final BluetoothGattCallback callback;
+    private final SimulationProfile profile;
+    private final ScheduledExecutorService radio;
+    private final List<BluetoothGattService> services = new ArrayList<BluetoothGattService>();
+    private final BluetoothGattCharacteristic notifyCharacteristic;
+    private final BluetoothGattCharacteristic readCharacteristic;
+
+    private volatile boolean connected;
+    private volatile boolean closed;
+    private ScheduledFuture<?> notifier;
+
+    // operation counts, so tests can check what went over the air
+    final AtomicInteger reads = new AtomicInteger();
+    final AtomicInteger writes = new AtomicInteger();
+    final AtomicInteger descriptorWrites = new AtomicInteger();
+    final AtomicInteger notificationsSent = new AtomicInteger();
+
+    VirtualGatt(VirtualDevice device, BluetoothGattCallback callback, SimulationProfile profile, ScheduledExecutorService radio) {
+        this.device = device;
+        this.callback = callback;
+        this.profile = profile;
+        this.radio = radio;
+
+        BluetoothGattService service = new BluetoothGattService(SERVICE, 1, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        notifyCharacteristic = new BluetoothGattCharacteristic(NOTIFY, 2, BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        notifyCharacteristic.addDescriptor(new BluetoothGattDescriptor(CCCD,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+        BluetoothGattCharacteristic writeCharacteristic = new BluetoothGattCharacteristic(WRITE, 3,
+                BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE);
+        readCharacteristic = new BluetoothGattCharacteristic(READ, 4, BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        service.addCharacteristic(notifyCharacteristic);
+        service.addCharacteristic(writeCharacteristic);
+        service.addCharacteristic(readCharacteristic);
+        services.add(service);
+    }
+
+    void startConnecting(final boolean fail) {
+        // never instant, the caller has to get the gatt back before the first callback
+        long delay = Math.max(1000, profile.nextLatencyMicros());
+        schedule(() -> {
+            if (fail) {
+                callback.onConnectionStateChange(this, GATT_ERROR, BluetoothProfile.STATE_DISCONNECTED);
+            } else {
+                connected = true;
+                callback.onConnectionStateChange(this, GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+            }
+        }, delay);
+    }
+
+    // the peripheral goes out of range
+    void dropLink() {
+        connected = false;
+        stopNotifier();
+        schedule(() -> callback.onConnectionStateChange(this, GATT_CONN_TIMEOUT, BluetoothProfile.STATE_DISCONNECTED),
+                profile.nextLatencyMicros());
+    }
+
+    // the peripheral sends Service Changed, as Android 12 reports it
+    void serviceChanged() {
+        schedule(() -> ((Peripheral) callback).onServiceChanged(this), profile.nextLatencyMicros());
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        return services;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if (!connected) {
+            return false;
+        }
+        schedule(() -> callback.onServicesDiscovered(this, GATT_SUCCESS), profile.nextLatencyMicros());
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(final int mtu) {
+        if (!connected) {
+            return false;
+        }
+        schedule(() -> callback.onMtuChanged(this, Math.min(mtu, 247), GATT_SUCCESS), profile.nextLatencyMicros());
+        return true;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int connectionPriority) {
+        return connected;
+    }
+
+    @Override
+    public boolean readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        if (!connected) {
+            return false;
+        }
+        final int count = reads.incrementAndGet();
+        deliver(() -> {
+            characteristic.setValue(new byte[] { (byte) count });
+            callback.onCharacteristicRead(this, characteristic, GATT_SUCCESS);
+        });
+        return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        if (!connected) {
+            return false;
+        }
+        writes.incrementAndGet();
+        deliver(() -> callback.onCharacteristicWrite(this, characteristic, GATT_SUCCESS));
+        return true;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+        return connected;
+    }
+
+    @Override
+    public boolean writeDescriptor(final BluetoothGattDescriptor descriptor) {
+        if (!connected) {
+            return false;
+        }
+        descriptorWrites.incrementAndGet();
+        final boolean enable = !Arrays.equals(descriptor.getValue(), BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        deliver(() -> {
+            callback.onDescriptorWrite(this, descriptor, GATT_SUCCESS);
+            if (enable) {
+                startNotifier();
+            } else {
+                stopNotifier();
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        if (!connected) {
+            return;
+        }
+        connected = false;
+        stopNotifier();
+        schedule(() -> callback.onConnectionStateChange(this, GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED),
+                profile.nextLatencyMicros());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        connected = false;
+        stopNotifier();
+    }
+
+    private synchronized void startNotifier() {
+        long interval = profile.getNotificationIntervalMicros();
+        if (interval <= 0 || notifier != null || !connected) {
+            return;
+        }
+        final byte[] value = new byte[profile.getNotificationSize()];
+        notifier = radio.scheduleAtFixedRate(() -> {
+            if (!connected || closed) {
+                return;
+            }
+            int sequence = notificationsSent.incrementAndGet();
+            value[0] = (byte) sequence;
+            notifyCharacteristic.setValue(value.clone());
+            callback.onCharacteristicChanged(this, notifyCharacteristic);
+        }, interval, interval, TimeUnit.MICROSECONDS);
+    }
+
+    private synchronized void stopNotifier() {
+        if (notifier != null) {
+            notifier.cancel(false);
+            notifier = null;
+        }
+    }
+
+    // read, write and descriptor callbacks can be lost, like on some real stacks
+    private void deliver(Runnable callbackCall) {
+        if (profile.shouldDrop()) {
+            return;
+        }
+        schedule(callbackCall, profile.nextLatencyMicros());
+    }
+
+    private void schedule(final Runnable callbackCall, long delayMicros) {
+        radio.schedule(() -> {
+            if (!closed) {
+                callbackCall.run();
+            }
+        }, delayMicros, TimeUnit.MICROSECONDS);
+    }
+}
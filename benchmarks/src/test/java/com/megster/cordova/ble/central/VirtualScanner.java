@@ -0,0 +1,126 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A BluetoothLeScanner whose "controller" applies ScanFilters and holds results back for the report
+ * delay, so tests can see how many advertisements would have reached the app.
+ */
+class VirtualScanner extends BluetoothLeScanner {
+
+    final AtomicInteger advertisements = new AtomicInteger();
+    final AtomicInteger delivered = new AtomicInteger();
+    final AtomicInteger starts = new AtomicInteger();
+
+    // makes startScan fail like a chipset that can't handle the settings
+    volatile boolean rejectSettings;
+
+    private ScanCallback callback;
+    private List<ScanFilter> filters;
+    private ScanSettings settings;
+    private final List<ScanResult> pending = new ArrayList<ScanResult>();
+
+    @Override
+    public synchronized void startScan(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
+        if (rejectSettings) {
+            callback.onScanFailed(ScanCallback.SCAN_FAILED_FEATURE_UNSUPPORTED);
+            return;
+        }
+        this.filters = filters;
+        this.settings = settings;
+        this.callback = callback;
+        starts.incrementAndGet();
+    }
+
+    @Override
+    public synchronized void stopScan(ScanCallback callback) {
+        if (callback == this.callback) {
+            this.callback = null;
+            pending.clear();
+        }
+    }
+
+    synchronized boolean isScanning() {
+        return callback != null;
+    }
+
+    synchronized List<ScanFilter> getFilters() {
+        return filters;
+    }
+
+    synchronized ScanSettings getSettings() {
+        return settings;
+    }
+
+    // returns false if nobody is scanning
+    synchronized boolean advertise(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        if (callback == null) {
+            return false;
+        }
+        advertisements.incrementAndGet();
+        if (!matches(scanRecord)) {
+            return true;
+        }
+        ScanResult result = new ScanResult(device, new ScanRecord(scanRecord), rssi, System.nanoTime());
+        if (settings.getReportDelayMillis() > 0) {
+            pending.add(result);
+        } else {
+            delivered.incrementAndGet();
+            callback.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
+        }
+        return true;
+    }
+
+    // what the controller does once the report delay is up
+    synchronized void reportBatch() {
+        if (callback == null || pending.isEmpty()) {
+            return;
+        }
+        List<ScanResult> batch = new ArrayList<ScanResult>(pending);
+        pending.clear();
+        delivered.addAndGet(batch.size());
+        callback.onBatchScanResults(batch);
+    }
+
+    private boolean matches(byte[] scanRecord) {
+        if (filters.isEmpty()) {
+            return true;
+        }
+        for (ScanFilter filter : filters) {
+            if (filter.getServiceUuid() != null
+                    && !AdvertisingData.hasServiceUUID(scanRecord, new UUID[] { filter.getServiceUuid().getUuid() })) {
+                continue;
+            }
+            if (filter.getManufacturerId() >= 0 && !AdvertisingData.matchesManufacturerData(scanRecord,
+                    filter.getManufacturerId(), filter.getManufacturerData(), filter.getManufacturerDataMask())) {
+                continue;
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,286 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Reads the AD structures of a raw scan record in place. Each structure is a length byte, a type byte
+ * and length - 1 bytes of data. The static matchers don't allocate, so they are safe to call for every
+ * advertisement. An instance walks the record once, on first use, and only remembers where each
+ * structure starts; values are decoded straight from the original bytes when the JSON is built.
+ */
+class AdvertisingData {
+
+    // AD types from the Bluetooth Assigned Numbers
+    static final int TYPE_INCOMPLETE_16BIT_UUIDS = 0x02;
+    static final int TYPE_COMPLETE_16BIT_UUIDS = 0x03;
+    static final int TYPE_INCOMPLETE_32BIT_UUIDS = 0x04;
+    static final int TYPE_COMPLETE_32BIT_UUIDS = 0x05;
+    static final int TYPE_INCOMPLETE_128BIT_UUIDS = 0x06;
+    static final int TYPE_COMPLETE_128BIT_UUIDS = 0x07;
+    static final int TYPE_SHORTENED_LOCAL_NAME = 0x08;
+    static final int TYPE_COMPLETE_LOCAL_NAME = 0x09;
+    static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    static final int TYPE_SERVICE_DATA_16BIT = 0x16;
+    static final int TYPE_SERVICE_DATA_32BIT = 0x20;
+    static final int TYPE_SERVICE_DATA_128BIT = 0x21;
+    static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    // 0000XXXX-0000-1000-8000-00805f9b34fb
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final byte[] scanRecord;
+
+    // offset of the length byte of each AD structure, filled in by parse()
+    private int[] offsets;
+    private int count;
+
+    public AdvertisingData(byte[] scanRecord) {
+        this.scanRecord = scanRecord == null ? new byte[0] : scanRecord;
+    }
+
+    private void parse() {
+        if (offsets != null) {
+            return;
+        }
+
+        // a structure is at least 2 bytes, so this is always big enough
+        offsets = new int[scanRecord.length / 2 + 1];
+        int offset = 0;
+        while (offset + 1 < scanRecord.length) {
+            int length = scanRecord[offset] & 0xFF;
+            if (length == 0 || offset + length >= scanRecord.length) {
+                break;
+            }
+            offsets[count++] = offset;
+            offset += length + 1;
+        }
+    }
+
+    /*
+     * Uses the same keys as the advertising dictionary on iOS so apps can share parsing code.
+     * 16 bit UUIDs are shortened the same way as UUIDHelper.uuidToString.
+     */
+    public JSONObject toJSON() throws JSONException {
+        parse();
+
+        JSONObject json = new JSONObject();
+        JSONArray serviceUUIDs = null;
+        JSONObject serviceData = null;
+
+        for (int i = 0; i < count; i++) {
+            int offset = offsets[i];
+            int type = scanRecord[offset + 1] & 0xFF;
+            int start = offset + 2;
+            int end = offset + 1 + (scanRecord[offset] & 0xFF);
+
+            switch (type) {
+                case TYPE_COMPLETE_LOCAL_NAME:
+                    json.put("kCBAdvDataLocalName", new String(scanRecord, start, end - start, UTF8));
+                    break;
+                case TYPE_SHORTENED_LOCAL_NAME:
+                    if (!json.has("kCBAdvDataLocalName")) {
+                        json.put("kCBAdvDataLocalName", new String(scanRecord, start, end - start, UTF8));
+                    }
+                    break;
+                case TYPE_TX_POWER_LEVEL:
+                    if (end > start) {
+                        json.put("kCBAdvDataTxPowerLevel", scanRecord[start]);
+                    }
+                    break;
+                case TYPE_INCOMPLETE_16BIT_UUIDS:
+                case TYPE_COMPLETE_16BIT_UUIDS:
+                case TYPE_INCOMPLETE_32BIT_UUIDS:
+                case TYPE_COMPLETE_32BIT_UUIDS:
+                case TYPE_INCOMPLETE_128BIT_UUIDS:
+                case TYPE_COMPLETE_128BIT_UUIDS:
+                    if (serviceUUIDs == null) {
+                        serviceUUIDs = new JSONArray();
+                        json.put("kCBAdvDataServiceUUIDs", serviceUUIDs);
+                    }
+                    int size = uuidSize(type);
+                    for (int j = start; j + size <= end; j += size) {
+                        serviceUUIDs.put(uuidToString(j, size));
+                    }
+                    break;
+                case TYPE_SERVICE_DATA_16BIT:
+                case TYPE_SERVICE_DATA_32BIT:
+                case TYPE_SERVICE_DATA_128BIT:
+                    int uuidSize = uuidSize(type);
+                    if (end - start >= uuidSize) {
+                        if (serviceData == null) {
+                            serviceData = new JSONObject();
+                            json.put("kCBAdvDataServiceData", serviceData);
+                        }
+                        serviceData.put(uuidToString(start, uuidSize),
+                                Peripheral.byteArrayToJSON(scanRecord, start + uuidSize, end - start - uuidSize));
+                    }
+                    break;
+                case TYPE_MANUFACTURER_DATA:
+                    // like iOS, this includes the 2 byte company identifier
+                    json.put("kCBAdvDataManufacturerData", Peripheral.byteArrayToJSON(scanRecord, start, end - start));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return json;
+    }
+
+    private static int uuidSize(int type) {
+        switch (type) {
+            case TYPE_INCOMPLETE_16BIT_UUIDS:
+            case TYPE_COMPLETE_16BIT_UUIDS:
+            case TYPE_SERVICE_DATA_16BIT:
+                return 2;
+            case TYPE_INCOMPLETE_32BIT_UUIDS:
+            case TYPE_COMPLETE_32BIT_UUIDS:
+            case TYPE_SERVICE_DATA_32BIT:
+                return 4;
+            default:
+                return 16;
+        }
+    }
+
+    private String uuidToString(int offset, int size) {
+        if (size == 2) {
+            int value = (int) readUnsigned(scanRecord, offset, 2);
+            return new String(new char[] {
+                    HEX[(value >> 12) & 0xF], HEX[(value >> 8) & 0xF], HEX[(value >> 4) & 0xF], HEX[value & 0xF]
+            });
+        } else if (size == 4) {
+            return UUIDHelper.uuidToString(new UUID(shortUUIDBits(readUnsigned(scanRecord, offset, 4)), BASE_UUID_LSB));
+        }
+        return UUIDHelper.uuidToString(new UUID(readUnsigned(scanRecord, offset + 8, 8), readUnsigned(scanRecord, offset, 8)));
+    }
+
+    // true if the record advertises any of the uuids
+    public static boolean hasServiceUUID(byte[] scanRecord, UUID[] uuids) {
+        int offset = 0;
+        while (offset + 1 < scanRecord.length) {
+            int length = scanRecord[offset] & 0xFF;
+            if (length == 0 || offset + length >= scanRecord.length) {
+                break;
+            }
+            int type = scanRecord[offset + 1] & 0xFF;
+            int start = offset + 2;
+            int end = offset + 1 + length;
+
+            switch (type) {
+                case TYPE_INCOMPLETE_16BIT_UUIDS:
+                case TYPE_COMPLETE_16BIT_UUIDS:
+                    for (int i = start; i + 2 <= end; i += 2) {
+                        if (contains(uuids, shortUUIDBits(readUnsigned(scanRecord, i, 2)), BASE_UUID_LSB)) {
+                            return true;
+                        }
+                    }
+                    break;
+                case TYPE_INCOMPLETE_32BIT_UUIDS:
+                case TYPE_COMPLETE_32BIT_UUIDS:
+                    for (int i = start; i + 4 <= end; i += 4) {
+                        if (contains(uuids, shortUUIDBits(readUnsigned(scanRecord, i, 4)), BASE_UUID_LSB)) {
+                            return true;
+                        }
+                    }
+                    break;
+                case TYPE_INCOMPLETE_128BIT_UUIDS:
+                case TYPE_COMPLETE_128BIT_UUIDS:
+                    for (int i = start; i + 16 <= end; i += 16) {
+                        // 128 bit UUIDs are little endian, so the least significant half comes first
+                        if (contains(uuids, readUnsigned(scanRecord, i + 8, 8), readUnsigned(scanRecord, i, 8))) {
+                            return true;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+            offset = end;
+        }
+        return false;
+    }
+
+    // true if the record has manufacturer data for manufacturerId whose bytes match data under mask.
+    // A null mask compares every byte, a null data only checks the manufacturer.
+    public static boolean matchesManufacturerData(byte[] scanRecord, int manufacturerId, byte[] data, byte[] mask) {
+        int offset = 0;
+        while (offset + 1 < scanRecord.length) {
+            int length = scanRecord[offset] & 0xFF;
+            if (length == 0 || offset + length >= scanRecord.length) {
+                break;
+            }
+            int type = scanRecord[offset + 1] & 0xFF;
+            int start = offset + 2;
+            int end = offset + 1 + length;
+
+            if (type == TYPE_MANUFACTURER_DATA && end - start >= 2
+                    && readUnsigned(scanRecord, start, 2) == manufacturerId
+                    && matchesMasked(scanRecord, start + 2, end, data, mask)) {
+                return true;
+            }
+            offset = end;
+        }
+        return false;
+    }
+
+    private static boolean matchesMasked(byte[] scanRecord, int start, int end, byte[] data, byte[] mask) {
+        if (data == null) {
+            return true;
+        }
+        if (end - start < data.length) {
+            return false;
+        }
+        for (int i = 0; i < data.length; i++) {
+            int m = (mask == null || i >= mask.length) ? 0xFF : mask[i];
+            if (((scanRecord[start + i] ^ data[i]) & m) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(UUID[] uuids, long msb, long lsb) {
+        for (UUID uuid : uuids) {
+            if (uuid.getMostSignificantBits() == msb && uuid.getLeastSignificantBits() == lsb) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 16 and 32 bit UUIDs replace the first 32 bits of the base UUID
+    private static long shortUUIDBits(long value) {
+        return (value << 32) | BASE_UUID_MSB;
+    }
+
+    // little endian unsigned integer of up to 8 bytes
+    static long readUnsigned(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -15,7 +15,6 @@
 package com.megster.cordova.ble.central;
 
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothProfile;
 import android.os.Build.VERSION;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
@@ -33,8 +32,14 @@ import org.apache.cordova.LOG;
 import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 
 public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.LeScanCallback {
@@ -45,18 +50,42 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
     private static final String STOP_SCAN = "stopScan";
     private static final String CONNECT = "connect";
     private static final String DISCONNECT = "disconnect";
+    private static final String READ = "read";
     private static final String WRITE = "write";
+    private static final String WRITE_WITHOUT_RESPONSE = "writeWithoutResponse";
+    private static final String WRITE_STREAM = "writeStream";
     private static final String START_NOTIFICATION = "startNotification"; // register for characteristic notification
+    private static final String STOP_NOTIFICATION = "stopNotification";
     private static final String ENABLE = "enable";
+    private static final String IS_CONNECTED = "isConnected";
+    private static final String LIST = "list";
+    private static final String GET_STATS = "getStats";
+    private static final String RESET_STATS = "resetStats";
+
+    private static final Set<String> ACTIONS = new HashSet<String>(Arrays.asList(
+            START_SCAN, SCAN, STOP_SCAN, CONNECT, DISCONNECT, READ, WRITE, WRITE_WITHOUT_RESPONSE, WRITE_STREAM,
+            START_NOTIFICATION, STOP_NOTIFICATION, ENABLE, IS_CONNECTED, LIST, GET_STATS, RESET_STATS));
+
+    // actions whose first argument is a device address, these run on that device's lane
+    private static final Set<String> DEVICE_ACTIONS = new HashSet<String>(Arrays.asList(
+            CONNECT, DISCONNECT, READ, WRITE, WRITE_WITHOUT_RESPONSE, WRITE_STREAM, START_NOTIFICATION,
+            STOP_NOTIFICATION, IS_CONNECTED));
 
     // callbacks
-    CallbackContext discoverCallback;
+    volatile CallbackContext discoverCallback;
+    private volatile UUID[] scanServiceUUIDs;
+    private volatile ScanOptions scanOptions;
+    private volatile DuplicateFilter duplicateFilter;
+    private volatile ScanBatcher scanBatcher;
+    private final ScanScheduler scanScheduler = new ScanScheduler(this);
+    // stops a timed scan, see scan
+    private ScheduledFuture<?> scanTimeout;
 
     private enum States {
         ERROR, IDLE, SCANNING, CONNECTED;
     };
 
-    private States activeState = States.IDLE;
+    private volatile States activeState = States.IDLE;
 
     private static final String TAG = "BLEPlugin";
     private static final int REQUEST_ENABLE_BLUETOOTH = 1;
@@ -64,48 +93,88 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
     BluetoothAdapter bluetoothAdapter;
     BluetoothManager bluetoothManager;
 
-    Peripheral activePeripheral;
+    // every peripheral we have connected to, keyed by MAC address
+    private final Map<String, Peripheral> peripherals = new ConcurrentHashMap<String, Peripheral>();
+
+    // kept across connections so reconnecting doesn't lose a device's history
+    private final ConcurrentMap<String, BLEStats> deviceStats = new ConcurrentHashMap<String, BLEStats>();
+
+    // execute hands commands to these, see execute
+    private final ConcurrentMap<String, SerialExecutor> deviceLanes = new ConcurrentHashMap<String, SerialExecutor>();
+    private SerialExecutor adapterLane;
 
+    /*
+     * Commands run on the Cordova thread pool instead of the bridge thread, so a slow Bluetooth stack
+     * doesn't hold up other plugins. Each device gets its own serial lane, which keeps its commands in
+     * order while different devices are served in parallel. Scanning and adapter actions share one lane.
+     */
     @Override
-    public boolean execute(String action, CordovaArgs args, CallbackContext callbackContext) throws JSONException {
+    public boolean execute(final String action, final CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
         Log.d(TAG, "action = " + action);
 
-        // Tells us whether we are currently scanning
+        if (!ACTIONS.contains(action)) {
+            LOG.d(TAG, "Invalid action provided");
+            return false;
+        }
+
+        laneFor(action, args).execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dispatch(action, args, callbackContext);
+                } catch (JSONException e) {
+                    Log.e(TAG, "Invalid arguments for " + action, e);
+                    callbackContext.error("Invalid arguments for " + action + ": " + e.getMessage());
+                } catch (RuntimeException e) {
+                    // e.g. a bad address or UUID, Cordova used to report these for us before commands left the bridge thread
+                    Log.e(TAG, action + " failed", e);
+                    callbackContext.error(action + " failed: " + e.getMessage());
+                }
+            }
+        });
+        return true;
+    }
+
+    private void dispatch(String action, CordovaArgs args, CallbackContext callbackContext) throws JSONException {
         UUID[] serviceUUIDs;
         UUID serviceUUID;
         UUID characteristicUUID;
         String macAddress;
 
-        if (bluetoothAdapter == null) {
-            Activity activity = cordova.getActivity();
-            bluetoothManager = (BluetoothManager) activity.getSystemService(Context.BLUETOOTH_SERVICE);
-            bluetoothAdapter = bluetoothManager.getAdapter();
-        }
-
-        List<BluetoothDevice> devices = bluetoothManager.getConnectedDevices(BluetoothProfile.GATT);
-        Log.d(TAG, "NUM CONNECTED DEVICES: " + devices.size());
+        initBluetooth();
 
 
         switch (action) {
             case START_SCAN:
+                serviceUUIDs = parseServiceUUIDList(args.getJSONArray(0));
+                ScanOptions options = ScanOptions.fromJSON(args.optJSONObject(1));
+                findLowEnergyDevices(callbackContext, serviceUUIDs, options);
+                break;
             case SCAN:
                 serviceUUIDs = parseServiceUUIDList(args.getJSONArray(0));
-                findLowEnergyDevices(callbackContext, serviceUUIDs);
+                findLowEnergyDevices(callbackContext, serviceUUIDs, ScanOptions.fromJSON(null));
+                scheduleScanTimeout(callbackContext, (long) (args.getDouble(1) * 1000));
                 break;
             case STOP_SCAN:
-                bluetoothAdapter.stopLeScan(this);
+                stopScan();
                 callbackContext.success();
-                activeState = States.IDLE;
                 break;
             case CONNECT:
                 macAddress = args.getString(0);
-                connect(callbackContext, macAddress);
+                connect(callbackContext, macAddress, ConnectOptions.fromJSON(args.optJSONObject(1)));
                 activeState = States.CONNECTED;
                 break;
             case DISCONNECT:
-                close(callbackContext);
+                macAddress = args.getString(0);
+                close(callbackContext, macAddress);
                 activeState = States.IDLE;
                 break;
+            case READ:
+                macAddress = args.getString(0);
+                serviceUUID = uuidFromString(args.getString(1));
+                characteristicUUID = uuidFromString(args.getString(2));
+                read(callbackContext, macAddress, serviceUUID, characteristicUUID);
+                break;
             case WRITE:
                 macAddress = args.getString(0);
                 serviceUUID = uuidFromString(args.getString(1));
@@ -114,28 +183,103 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
                 int type = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
                 write(callbackContext, macAddress, serviceUUID, characteristicUUID, data, type);
                 break;
+            case WRITE_WITHOUT_RESPONSE:
+                macAddress = args.getString(0);
+                serviceUUID = uuidFromString(args.getString(1));
+                characteristicUUID = uuidFromString(args.getString(2));
+                data = args.getArrayBuffer(3);
+                type = BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+                write(callbackContext, macAddress, serviceUUID, characteristicUUID, data, type);
+                break;
+            case WRITE_STREAM:
+                macAddress = args.getString(0);
+                serviceUUID = uuidFromString(args.getString(1));
+                characteristicUUID = uuidFromString(args.getString(2));
+                data = args.getArrayBuffer(3);
+                writeStream(callbackContext, macAddress, serviceUUID, characteristicUUID, data);
+                break;
             case START_NOTIFICATION:
                 final String mac = args.getString(0);
                 final UUID service = uuidFromString(args.getString(1));
                 final CallbackContext cb = callbackContext;
                 final UUID chars = uuidFromString(args.getString(2));
-                registerNotifyCallback(cb, mac, service, chars);
+                final NotificationBuffer buffer = NotificationBuffer.fromJSON(cb, args.optJSONObject(3));
+                registerNotifyCallback(cb, mac, service, chars, buffer);
+                break;
+            case STOP_NOTIFICATION:
+                macAddress = args.getString(0);
+                serviceUUID = uuidFromString(args.getString(1));
+                characteristicUUID = uuidFromString(args.getString(2));
+                removeNotifyCallback(callbackContext, macAddress, serviceUUID, characteristicUUID);
                 break;
             case ENABLE:
                 Log.d(TAG, "We have enabled bluetooth");
                 break;
+            case IS_CONNECTED:
+                macAddress = args.getString(0);
+                if (isConnected(macAddress)) {
+                    callbackContext.success();
+                } else {
+                    callbackContext.error("Not connected");
+                }
+                break;
+            case LIST:
+                callbackContext.success(listConnected());
+                break;
+            case GET_STATS:
+                callbackContext.success(getStats());
+                break;
+            case RESET_STATS:
+                BLEStats.global().reset();
+                for (BLEStats stats : deviceStats.values()) {
+                    stats.reset();
+                }
+                callbackContext.success();
+                break;
             default:
+                // execute only queues known actions
                 LOG.d(TAG, "Invalid action provided");
-                return false;
+                break;
 
         }
-        return true;
+    }
+
+    private synchronized void initBluetooth() {
+        if (bluetoothAdapter == null) {
+            Activity activity = cordova.getActivity();
+            bluetoothManager = (BluetoothManager) activity.getSystemService(Context.BLUETOOTH_SERVICE);
+            bluetoothAdapter = bluetoothManager.getAdapter();
+        }
+    }
+
+    private Executor laneFor(String action, CordovaArgs args) {
+        if (!DEVICE_ACTIONS.contains(action)) {
+            return adapterLane();
+        }
+        String macAddress = args.optString(0);
+        SerialExecutor lane = deviceLanes.get(macAddress);
+        if (lane == null) {
+            SerialExecutor created = new SerialExecutor(cordova.getThreadPool());
+            lane = deviceLanes.putIfAbsent(macAddress, created);
+            if (lane == null) {
+                lane = created;
+            }
+        }
+        return lane;
+    }
+
+    private synchronized Executor adapterLane() {
+        if (adapterLane == null) {
+            adapterLane = new SerialExecutor(cordova.getThreadPool());
+        }
+        return adapterLane;
     }
 
     /*
-     * If an
+     * Each address gets its own Peripheral, so connections to different devices run in parallel
+     * with their own GATT connection and command queue.
      */
-    public void connect(CallbackContext callbackContext, String macAddress) {
+    public void connect(CallbackContext callbackContext, String macAddress, ConnectOptions options) {
         Log.d(TAG, "Attempting to connect to: " + macAddress);
         BluetoothDevice device = bluetoothAdapter.getRemoteDevice(macAddress);
         Log.d(TAG, "device discovered and retrieved. ready to connect");
@@ -143,64 +287,234 @@ public class BLECentralPlugin extends CordovaPlugin implements BluetoothAdapter.
             callbackContext.error("Could not find the peripheral:" + macAddress);
             return;
         }
-        byte[] s = "a".getBytes();
-        activePeripheral = new Peripheral(device, 1, s);
-        if (activePeripheral != null) {
-            Log.d(TAG, "connecting to peripheral");
-            activePeripheral.connect(callbackContext, cordova.getActivity());
-        } else {
-            Log.d(TAG, "peripheral not found");
-            callbackContext.error("Peripheral " + macAddress + " not found.");
+
+        Peripheral peripheral = peripherals.get(macAddress);
+        if (peripheral != null && peripheral.isConnected()) {
+            Log.d(TAG, "already connected to " + macAddress);
+            if (peripheral.isServicesDiscovered()) {
+                callbackContext.success(peripheral.asJSONObject(peripheral.gatt));
+            } else {
+                callbackContext.error("Peripheral " + macAddress + " is already connecting.");
+            }
+            return;
+        }
+        if (peripheral != null && peripheral.isConnecting()) {
+            // replacing it would leave its gatt, reconnect task and watchdog running
+            callbackContext.error("Peripheral " + macAddress + " is already connecting.");
+            return;
+        }
+
+        peripheral = new Peripheral(device, 1, new byte[0]);
+        peripherals.put(macAddress, peripheral);
+        Log.d(TAG, "connecting to peripheral");
+        peripheral.connect(callbackContext, cordova.getActivity(), options, statsFor(macAddress), scanScheduler);
+    }
+
+    public void close(CallbackContext callbackContext, String macAddress) {
+        Log.d(TAG, "Disconnecting locker " + macAddress);
+        Peripheral peripheral = peripherals.get(macAddress);
+        if (peripheral == null) {
+            // never connected, so there is nothing to disconnect
+            callbackContext.success();
+            return;
+        }
+        peripheral.close(callbackContext);
+    }
+
+    /*
+     * The peripherals map doubles as the connection state table. Each Peripheral tracks its own state
+     * from onConnectionStateChange, so this never has to make a binder call to the BluetoothManager.
+     */
+    public boolean isConnected(String macAddress) {
+        Peripheral peripheral = peripherals.get(macAddress);
+        return peripheral != null && peripheral.isConnected();
+    }
+
+    public JSONArray listConnected() {
+        JSONArray json = new JSONArray();
+        for (Peripheral peripheral : peripherals.values()) {
+            if (peripheral.isConnected()) {
+                json.put(peripheral.asJSONObject());
+            }
         }
+        return json;
     }
 
-    public void close(CallbackContext callbackContext) {
-        Log.d(TAG, "Disconnecting locker");
-        if (activePeripheral == null) {
+    public void read(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID) {
+        Peripheral peripheral = peripherals.get(macAddress);
+        if (peripheral == null) {
+            callbackContext.error("Peripheral " + macAddress + " not found.");
             return;
         }
-        activePeripheral.close(callbackContext);
+
+        peripheral.read(callbackContext, serviceUUID, characteristicUUID);
+    }
+
+    private BLEStats statsFor(String macAddress) {
+        BLEStats stats = deviceStats.get(macAddress);
+        if (stats == null) {
+            BLEStats created = new BLEStats();
+            stats = deviceStats.putIfAbsent(macAddress, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    public JSONObject getStats() throws JSONException {
+        JSONObject devices = new JSONObject();
+        for (Map.Entry<String, BLEStats> entry : deviceStats.entrySet()) {
+            devices.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        JSONObject json = new JSONObject();
+        json.put("global", BLEStats.global().toJSON());
+        json.put("devices", devices);
+        return json;
     }
 
     public void write(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID, byte[] data, int writeType) {
-        if (activePeripheral == null) {
+        Peripheral peripheral = peripherals.get(macAddress);
+        if (peripheral == null) {
             callbackContext.error("Peripheral " + macAddress + " not found.");
             return;
         }
 
-        activePeripheral.write(callbackContext, serviceUUID, characteristicUUID, data, writeType);
+        peripheral.write(callbackContext, serviceUUID, characteristicUUID, data, writeType);
     }
 
-    public void registerNotifyCallback(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID) {
+    public void writeStream(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID, byte[] data) {
+        Peripheral peripheral = peripherals.get(macAddress);
+        if (peripheral == null) {
+            callbackContext.error("Peripheral " + macAddress + " not found.");
+            return;
+        }
+
+        peripheral.writeStream(callbackContext, serviceUUID, characteristicUUID, data);
+    }
+
+    public void registerNotifyCallback(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID, NotificationBuffer buffer) {
         // If the peripheral doesnt exist or isnt connected we can error our
-        if (activePeripheral == null) {
-            Log.d(TAG, "no active peripheral");
+        Peripheral peripheral = peripherals.get(macAddress);
+        if (peripheral == null) {
+            Log.d(TAG, "no peripheral for " + macAddress);
             callbackContext.error("Unable to register for notifications because " + macAddress + " not found");
             return;
         }
-        activePeripheral.registerNotifyCallback(callbackContext, serviceUUID, characteristicUUID);
+        peripheral.registerNotifyCallback(callbackContext, serviceUUID, characteristicUUID, buffer);
+    }
+
+    public void removeNotifyCallback(CallbackContext callbackContext, String macAddress, UUID serviceUUID, UUID characteristicUUID) {
+        Peripheral peripheral = peripherals.get(macAddress);
+        if (peripheral == null) {
+            callbackContext.error("Peripheral " + macAddress + " not found.");
+            return;
+        }
+        peripheral.removeNotifyCallback(callbackContext, serviceUUID, characteristicUUID);
     }
 
 
-    public void findLowEnergyDevices(CallbackContext callbackContext, UUID[] serviceUUIDs) {
+    public void findLowEnergyDevices(CallbackContext callbackContext, UUID[] serviceUUIDs, ScanOptions options) {
         Log.d(TAG, "findLowEnergyDevices() initiating scan" + activeState.toString());
+        cancelScanTimeout();
         // this is set u so we can fire from the onLeScan
         discoverCallback = callbackContext;
-        bluetoothAdapter.startLeScan(this);
+        scanServiceUUIDs = serviceUUIDs;
+        scanOptions = options;
+        duplicateFilter = new DuplicateFilter(options);
+        stopBatching();
+        if (options.isBatching()) {
+            scanBatcher = new ScanBatcher(callbackContext, options);
+        }
+        scanScheduler.start(bluetoothAdapter, callbackContext, serviceUUIDs, options);
         PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
         result.setKeepCallback(true);
         callbackContext.sendPluginResult(result);
     }
 
+    private void stopScan() {
+        cancelScanTimeout();
+        scanScheduler.stop();
+        stopBatching();
+        activeState = States.IDLE;
+    }
+
+    // the timeout hops onto the adapter lane, so it is ordered with startScan and stopScan
+    private void scheduleScanTimeout(final CallbackContext callbackContext, long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        final Runnable stop = new Runnable() {
+            @Override
+            public void run() {
+                // only if this scan hasn't been replaced in the meantime
+                if (discoverCallback == callbackContext) {
+                    Log.d(TAG, "Scan time is up");
+                    stopScan();
+                }
+            }
+        };
+        scanTimeout = BLEScheduler.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                adapterLane().execute(stop);
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelScanTimeout() {
+        if (scanTimeout != null) {
+            scanTimeout.cancel(false);
+            scanTimeout = null;
+        }
+    }
+
     @Override
     public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
         activeState = States.SCANNING;
+        if (!matchesScanFilter(scanRecord)) {
+            return;
+        }
+        // drop repeated advertisements before we pay for a Peripheral and its JSON
+        DuplicateFilter filter = duplicateFilter;
+        if (filter != null && !filter.shouldReport(device.getAddress(), rssi, scanRecord)) {
+            return;
+        }
         Log.d(TAG, "onLeScan() device discovered");
         Peripheral peripheral = new Peripheral(device, rssi, scanRecord);
-        if (discoverCallback != null) {
-            PluginResult result = new PluginResult(PluginResult.Status.OK, peripheral.asJSONObject());
+        ScanOptions options = scanOptions;
+        JSONObject json = options == null ? peripheral.asJSONObject()
+                : peripheral.asJSONObject(options.isRawAdvertising(), options.isParseAdvertising());
+        ScanBatcher batcher = scanBatcher;
+        if (batcher != null) {
+            batcher.add(json);
+        } else if (discoverCallback != null) {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, json);
             result.setKeepCallback(true);
             discoverCallback.sendPluginResult(result);
+            BLEStats.global().recordBridgeMessages(1);
+        }
+    }
+
+    // service and manufacturer filters are checked against the raw scan record, before any allocation
+    private boolean matchesScanFilter(byte[] scanRecord) {
+        UUID[] serviceUUIDs = scanServiceUUIDs;
+        if (serviceUUIDs != null && serviceUUIDs.length > 0 && !AdvertisingData.hasServiceUUID(scanRecord, serviceUUIDs)) {
+            return false;
+        }
+
+        ScanOptions options = scanOptions;
+        if (options != null && options.hasManufacturerFilter() && !AdvertisingData.matchesManufacturerData(scanRecord,
+                options.getManufacturerId(), options.getManufacturerData(), options.getManufacturerDataMask())) {
+            return false;
+        }
+        return true;
+    }
+
+    private void stopBatching() {
+        if (scanBatcher != null) {
+            scanBatcher.stop();
+            scanBatcher = null;
         }
     }
 
@@ -1,7 +1,11 @@
 package com.megster.cordova.ble.central;
 
+import android.bluetooth.BluetoothGattCharacteristic;
+
 import org.apache.cordova.CallbackContext;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -13,6 +17,7 @@ class BLECommand {
     public static int READ = 10000;
     public static int REGISTER_NOTIFY = 10001;
     public static int REMOVE_NOTIFY = 10002;
+    public static int WRITE_STREAM = 10003;
     // BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
     // BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
 
@@ -21,6 +26,10 @@ class BLECommand {
     private UUID characteristicUUID;
     private byte[] data;
     private int type;
+    private NotificationBuffer notificationBuffer;
+    private boolean restore;
+    private List<CallbackContext> coalesced;
+    private boolean finished;
 
 
     public BLECommand(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, int type) {
@@ -42,6 +51,22 @@ class BLECommand {
         return type;
     }
 
+    // the JavaScript name of the command, for error messages
+    public String getName() {
+        if (type == READ) {
+            return "read";
+        } else if (type == REGISTER_NOTIFY) {
+            return "startNotification";
+        } else if (type == REMOVE_NOTIFY) {
+            return "stopNotification";
+        } else if (type == WRITE_STREAM) {
+            return "writeStream";
+        } else if (type == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            return "writeWithoutResponse";
+        }
+        return "write";
+    }
+
     public CallbackContext getCallbackContext() {
         return callbackContext;
     }
@@ -57,4 +82,59 @@ class BLECommand {
     public byte[] getData() {
         return data;
     }
+
+    // only used by REGISTER_NOTIFY, null unless notifications are coalesced
+    public NotificationBuffer getNotificationBuffer() {
+        return notificationBuffer;
+    }
+
+    public void setNotificationBuffer(NotificationBuffer notificationBuffer) {
+        this.notificationBuffer = notificationBuffer;
+    }
+
+    // a REGISTER_NOTIFY replayed after a reconnect, JavaScript was already told about it
+    public boolean isRestore() {
+        return restore;
+    }
+
+    public void setRestore(boolean restore) {
+        this.restore = restore;
+    }
+
+    public boolean isWrite() {
+        return type == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT || type == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+    }
+
+    // a READ can pick up callers asking for the same characteristic while it is queued or in flight
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public void addCallbackContext(CallbackContext callbackContext) {
+        if (coalesced == null) {
+            coalesced = new ArrayList<CallbackContext>();
+        }
+        coalesced.add(callbackContext);
+    }
+
+    // completes the command for the original caller and everyone coalesced onto it
+    public void success(byte[] value) {
+        finished = true;
+        callbackContext.success(value);
+        if (coalesced != null) {
+            for (CallbackContext waiting : coalesced) {
+                waiting.success(value);
+            }
+        }
+    }
+
+    public void error(String message) {
+        finished = true;
+        callbackContext.error(message);
+        if (coalesced != null) {
+            for (CallbackContext waiting : coalesced) {
+                waiting.error(message);
+            }
+        }
+    }
 }
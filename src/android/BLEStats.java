@@ -0,0 +1,185 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for one device, or for the whole plugin. Everything recorded
+ * for a device is also recorded in the global stats. Recording is lock free so it can be called
+ * from the binder thread on every notification.
+ */
+class BLEStats {
+
+    private static final BLEStats GLOBAL = new BLEStats(null);
+
+    private final BLEStats parent;
+
+    private final LatencyHistogram connectTime = new LatencyHistogram();
+    private final LatencyHistogram discoveryTime = new LatencyHistogram();
+    private final LatencyHistogram writeTime = new LatencyHistogram();
+    private final LatencyHistogram readTime = new LatencyHistogram();
+    private final LatencyHistogram notificationInterval = new LatencyHistogram();
+
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong bytesNotified = new AtomicLong();
+    private final AtomicLong bridgeMessages = new AtomicLong();
+
+    // GATT status to number of times it was reported, e.g. 133
+    private final ConcurrentMap<Integer, AtomicLong> errors = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    public static BLEStats global() {
+        return GLOBAL;
+    }
+
+    // per device stats, rolled up into the global stats
+    public BLEStats() {
+        this(GLOBAL);
+    }
+
+    private BLEStats(BLEStats parent) {
+        this.parent = parent;
+    }
+
+    // durations are in microseconds
+
+    public void recordConnect(long micros) {
+        connectTime.record(micros);
+        if (parent != null) {
+            parent.recordConnect(micros);
+        }
+    }
+
+    public void recordDiscovery(long micros) {
+        discoveryTime.record(micros);
+        if (parent != null) {
+            parent.recordDiscovery(micros);
+        }
+    }
+
+    public void recordWrite(long micros, int bytes) {
+        writeTime.record(micros);
+        bytesWritten.addAndGet(bytes);
+        if (parent != null) {
+            parent.recordWrite(micros, bytes);
+        }
+    }
+
+    public void recordRead(long micros) {
+        readTime.record(micros);
+        if (parent != null) {
+            parent.recordRead(micros);
+        }
+    }
+
+    // interval is -1 for the first notification on a connection
+    public void recordNotification(long intervalMicros, int bytes) {
+        if (intervalMicros >= 0) {
+            notificationInterval.record(intervalMicros);
+        }
+        notifications.incrementAndGet();
+        bytesNotified.addAndGet(bytes);
+        if (parent != null) {
+            parent.recordNotification(intervalMicros, bytes);
+        }
+    }
+
+    public void recordError(int status) {
+        AtomicLong counter = errors.get(status);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = errors.putIfAbsent(status, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+        if (parent != null) {
+            parent.recordError(status);
+        }
+    }
+
+    public void recordTimeout() {
+        timeouts.incrementAndGet();
+        if (parent != null) {
+            parent.recordTimeout();
+        }
+    }
+
+    public void recordDisconnect() {
+        disconnects.incrementAndGet();
+        if (parent != null) {
+            parent.recordDisconnect();
+        }
+    }
+
+    public void recordBridgeMessages(int count) {
+        bridgeMessages.addAndGet(count);
+        if (parent != null) {
+            parent.recordBridgeMessages(count);
+        }
+    }
+
+    // only resets this level, resetting a device leaves the global totals alone
+    public void reset() {
+        connectTime.reset();
+        discoveryTime.reset();
+        writeTime.reset();
+        readTime.reset();
+        notificationInterval.reset();
+        disconnects.set(0);
+        timeouts.set(0);
+        notifications.set(0);
+        bytesWritten.set(0);
+        bytesNotified.set(0);
+        bridgeMessages.set(0);
+        errors.clear();
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("connectTime", connectTime.toJSON());
+            json.put("discoveryTime", discoveryTime.toJSON());
+            json.put("writeTime", writeTime.toJSON());
+            json.put("readTime", readTime.toJSON());
+            json.put("notificationInterval", notificationInterval.toJSON());
+            json.put("disconnects", disconnects.get());
+            json.put("timeouts", timeouts.get());
+            json.put("notifications", notifications.get());
+            json.put("bytesWritten", bytesWritten.get());
+            json.put("bytesNotified", bytesNotified.get());
+            json.put("bridgeMessages", bridgeMessages.get());
+
+            JSONObject errorJSON = new JSONObject();
+            for (Map.Entry<Integer, AtomicLong> entry : errors.entrySet()) {
+                errorJSON.put(String.valueOf(entry.getKey()), entry.getValue().get());
+            }
+            json.put("errors", errorJSON);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        return json;
+    }
+}
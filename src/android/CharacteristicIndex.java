@@ -0,0 +1,123 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Lookup table from (service UUID, characteristic UUID, property) to characteristic, built once when
+ * services are discovered so commands don't have to search the service every time.
+ *
+ * Some peripherals reuse UUIDs across characteristics, so each characteristic UUID keeps the first
+ * characteristic that has each property, plus the first one with the UUID regardless of properties.
+ * When a service UUID is repeated only the first service is used, like gatt.getService().
+ */
+class CharacteristicIndex {
+
+    // slot 0 is "any properties", slot n is property bit n - 1
+    private static final int ANY = 0;
+    private static final int SLOTS = 9;
+
+    private final Map<UUID, Map<UUID, BluetoothGattCharacteristic[]>> services;
+
+    private CharacteristicIndex(Map<UUID, Map<UUID, BluetoothGattCharacteristic[]>> services) {
+        this.services = services;
+    }
+
+    public static CharacteristicIndex build(List<BluetoothGattService> gattServices) {
+        Map<UUID, Map<UUID, BluetoothGattCharacteristic[]>> services = new HashMap<UUID, Map<UUID, BluetoothGattCharacteristic[]>>();
+
+        for (BluetoothGattService service : gattServices) {
+            if (services.containsKey(service.getUuid())) {
+                continue;
+            }
+
+            Map<UUID, BluetoothGattCharacteristic[]> characteristics = new HashMap<UUID, BluetoothGattCharacteristic[]>();
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                BluetoothGattCharacteristic[] slots = characteristics.get(characteristic.getUuid());
+                if (slots == null) {
+                    slots = new BluetoothGattCharacteristic[SLOTS];
+                    slots[ANY] = characteristic;
+                    characteristics.put(characteristic.getUuid(), slots);
+                }
+
+                int properties = characteristic.getProperties();
+                for (int slot = 1; slot < SLOTS; slot++) {
+                    if ((properties & (1 << (slot - 1))) != 0 && slots[slot] == null) {
+                        slots[slot] = characteristic;
+                    }
+                }
+            }
+            services.put(service.getUuid(), Collections.unmodifiableMap(characteristics));
+        }
+        return new CharacteristicIndex(Collections.unmodifiableMap(services));
+    }
+
+    public boolean hasService(UUID serviceUUID) {
+        return services.containsKey(serviceUUID);
+    }
+
+    // first characteristic with the UUID and the property, or null. Use 0 for any properties.
+    public BluetoothGattCharacteristic find(UUID serviceUUID, UUID characteristicUUID, int property) {
+        Map<UUID, BluetoothGattCharacteristic[]> characteristics = services.get(serviceUUID);
+        if (characteristics == null) {
+            return null;
+        }
+        BluetoothGattCharacteristic[] slots = characteristics.get(characteristicUUID);
+        if (slots == null) {
+            return null;
+        }
+        return slots[property == 0 ? ANY : Integer.numberOfTrailingZeros(property) + 1];
+    }
+
+    // prefers Notify, falls back to Indicate
+    public BluetoothGattCharacteristic findNotify(UUID serviceUUID, UUID characteristicUUID) {
+        BluetoothGattCharacteristic characteristic = find(serviceUUID, characteristicUUID, BluetoothGattCharacteristic.PROPERTY_NOTIFY);
+        if (characteristic == null) {
+            characteristic = find(serviceUUID, characteristicUUID, BluetoothGattCharacteristic.PROPERTY_INDICATE);
+        }
+        return characteristic;
+    }
+
+    // prefers a characteristic with Read, falls back to ANY with this UUID
+    public BluetoothGattCharacteristic findReadable(UUID serviceUUID, UUID characteristicUUID) {
+        BluetoothGattCharacteristic characteristic = find(serviceUUID, characteristicUUID, BluetoothGattCharacteristic.PROPERTY_READ);
+        if (characteristic == null) {
+            characteristic = find(serviceUUID, characteristicUUID, 0);
+        }
+        return characteristic;
+    }
+
+    // As a last resort return ANY characteristic with this UUID, even if it doesn't have the correct properties
+    public BluetoothGattCharacteristic findWritable(UUID serviceUUID, UUID characteristicUUID, int writeType) {
+        int writeProperty = BluetoothGattCharacteristic.PROPERTY_WRITE;
+        if (writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            writeProperty = BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
+        }
+
+        BluetoothGattCharacteristic characteristic = find(serviceUUID, characteristicUUID, writeProperty);
+        if (characteristic == null) {
+            characteristic = find(serviceUUID, characteristicUUID, 0);
+        }
+        return characteristic;
+    }
+}
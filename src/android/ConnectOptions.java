@@ -0,0 +1,145 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Options passed to connectWithOptions. Unknown keys are ignored so older JavaScript keeps working.
+ */
+class ConnectOptions {
+
+    private boolean cacheServices = false;
+    private String cacheKey = "";
+    private int mtu = 0;
+    private JSONObject adaptivePriority;
+    private JSONObject readCache;
+    private long disconnectDelay = 0;
+    private int reconnectAttempts = 0;
+    private long reconnectDelay = 500;
+    private long maxReconnectDelay = 30000;
+    private boolean autoConnect = false;
+
+    // watchdog timeouts in milliseconds, 0 waits forever
+    private long connectTimeout = 0;
+    private long discoveryTimeout = 10000;
+    private long readTimeout = 5000;
+    private long writeTimeout = 5000;
+    private long descriptorTimeout = 5000;
+    private boolean resetOnTimeout = false;
+
+    public static ConnectOptions fromJSON(JSONObject json) throws JSONException {
+        ConnectOptions options = new ConnectOptions();
+        if (json == null) {
+            return options;
+        }
+
+        options.cacheServices = json.optBoolean("cacheServices", options.cacheServices);
+        options.cacheKey = json.optString("cacheKey", options.cacheKey);
+        options.mtu = json.optInt("mtu", options.mtu);
+        options.adaptivePriority = json.optJSONObject("adaptivePriority");
+        if (options.adaptivePriority != null && options.adaptivePriority.optLong("interval", 1000) <= 0) {
+            throw new JSONException("adaptivePriority interval must be greater than 0");
+        }
+        options.readCache = json.optJSONObject("readCache");
+        options.disconnectDelay = json.optLong("disconnectDelay", options.disconnectDelay);
+        options.reconnectAttempts = json.optInt("reconnectAttempts", options.reconnectAttempts);
+        options.reconnectDelay = json.optLong("reconnectDelay", options.reconnectDelay);
+        options.maxReconnectDelay = json.optLong("maxReconnectDelay", options.maxReconnectDelay);
+        options.autoConnect = json.optBoolean("autoConnect", options.autoConnect);
+        options.connectTimeout = json.optLong("connectTimeout", options.connectTimeout);
+        options.discoveryTimeout = json.optLong("discoveryTimeout", options.discoveryTimeout);
+        options.readTimeout = json.optLong("readTimeout", options.readTimeout);
+        options.writeTimeout = json.optLong("writeTimeout", options.writeTimeout);
+        options.descriptorTimeout = json.optLong("descriptorTimeout", options.descriptorTimeout);
+        options.resetOnTimeout = json.optBoolean("resetOnTimeout", options.resetOnTimeout);
+        return options;
+    }
+
+    public boolean isCacheServices() {
+        return cacheServices;
+    }
+
+    // lets apps keep a separate cached table per firmware version
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    // 0 leaves the MTU at the default
+    public int getMtu() {
+        return mtu;
+    }
+
+    // extra time to wait after the GATT connection is closed before reporting the disconnect
+    public long getDisconnectDelay() {
+        return disconnectDelay;
+    }
+
+    public int getReconnectAttempts() {
+        return reconnectAttempts;
+    }
+
+    // delay before the first attempt, doubled for each attempt after that
+    public long getReconnectDelay() {
+        return reconnectDelay;
+    }
+
+    public long getMaxReconnectDelay() {
+        return maxReconnectDelay;
+    }
+
+    // keep waiting in the background with connectGatt(autoConnect=true) once the attempts run out
+    public boolean isAutoConnect() {
+        return autoConnect;
+    }
+
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    // covers MTU negotiation too, it happens between connecting and discovery
+    public long getDiscoveryTimeout() {
+        return discoveryTimeout;
+    }
+
+    public long getReadTimeout() {
+        return readTimeout;
+    }
+
+    // for writeStream this applies to each packet
+    public long getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    public long getDescriptorTimeout() {
+        return descriptorTimeout;
+    }
+
+    // drop the connection when a command times out instead of just moving on to the next command
+    public boolean isResetOnTimeout() {
+        return resetOnTimeout;
+    }
+
+    // thresholds for ConnectionPriorityController, null when adaptive priority is off
+    public JSONObject getAdaptivePriority() {
+        return adaptivePriority;
+    }
+
+    // characteristic UUID to time to live in milliseconds for ReadCache, null when reads aren't cached
+    public JSONObject getReadCache() {
+        return readCache;
+    }
+}
@@ -0,0 +1,148 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches the traffic on one connection and picks a connection priority to match. Bursts (a deep command
+ * queue, lots of bytes or a high notification rate) get CONNECTION_PRIORITY_HIGH and optionally the 2M PHY,
+ * a link with no traffic for idleTime drops to LOW_POWER, anything else runs BALANCED.
+ */
+class ConnectionPriorityController implements Runnable {
+
+    private static final String TAG = "PriorityController";
+
+    private final Peripheral peripheral;
+    private final long interval;
+    private final long bytesPerSecond;
+    private final int notificationRate;
+    private final int pendingCommands;
+    private final long idleTime;
+    private final boolean phy2M;
+
+    // traffic since the last evaluation
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger notifications = new AtomicInteger();
+
+    private BluetoothGatt gatt;
+    private ScheduledFuture<?> task;
+    private int priority = -1;
+    private boolean on2M = false;
+    private long lastActive;
+
+    // returns null unless adaptive priority was requested
+    public static ConnectionPriorityController fromJSON(Peripheral peripheral, JSONObject options) {
+        if (options == null) {
+            return null;
+        }
+        return new ConnectionPriorityController(peripheral, options);
+    }
+
+    private ConnectionPriorityController(Peripheral peripheral, JSONObject options) {
+        this.peripheral = peripheral;
+        this.interval = options.optLong("interval", 1000);
+        this.bytesPerSecond = options.optLong("bytesPerSecond", 2000);
+        this.notificationRate = options.optInt("notificationRate", 20);
+        this.pendingCommands = options.optInt("pendingCommands", 4);
+        this.idleTime = options.optLong("idleTime", 10000);
+        this.phy2M = options.optBoolean("phy2M", false);
+    }
+
+    public synchronized void start(BluetoothGatt gatt) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        stop();
+        this.gatt = gatt;
+        priority = -1;
+        on2M = false;
+        lastActive = System.currentTimeMillis();
+        bytes.set(0);
+        notifications.set(0);
+        task = BLEScheduler.get().scheduleAtFixedRate(this, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        gatt = null;
+    }
+
+    public void onBytes(int count) {
+        bytes.addAndGet(count);
+    }
+
+    public void onNotification(int count) {
+        notifications.incrementAndGet();
+        bytes.addAndGet(count);
+    }
+
+    @Override
+    public void run() {
+        // read before taking our own lock, Peripheral calls start() while holding its lock
+        int pending = peripheral.getPendingCommandCount();
+        evaluate(pending);
+    }
+
+    private synchronized void evaluate(int pending) {
+        if (gatt == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long bytesInInterval = bytes.getAndSet(0);
+        int notificationsInInterval = notifications.getAndSet(0);
+
+        if (bytesInInterval > 0 || notificationsInInterval > 0 || pending > 0) {
+            lastActive = now;
+        }
+
+        int wanted;
+        if (pending >= pendingCommands
+                || bytesInInterval * 1000 / interval >= bytesPerSecond
+                || notificationsInInterval * 1000 / interval >= notificationRate) {
+            wanted = BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+        } else if (now - lastActive >= idleTime) {
+            wanted = BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+        } else {
+            wanted = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        }
+
+        if (wanted != priority && gatt.requestConnectionPriority(wanted)) {
+            Log.d(TAG, "Connection priority " + priority + " -> " + wanted);
+            // 2M only for bursts, the radio draws less on 1M once the link quietens down
+            boolean wants2M = wanted == BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+            if (phy2M && wants2M != on2M && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                int phy = wants2M ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK;
+                gatt.setPreferredPhy(phy, phy, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                on2M = wants2M;
+            }
+            priority = wanted;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Drops repeated advertisements from the same device before onLeScan builds any JSON.
+ * Devices are keyed by address; what counts as a duplicate depends on ScanOptions.getDuplicates().
+ *
+ * Only the MAX_DEVICES most recently seen devices are remembered, devices with rotating private addresses
+ * would otherwise grow the table for as long as the scan runs. A device that was forgotten is reported
+ * again the next time it is seen.
+ */
+class DuplicateFilter {
+
+    private final String policy;
+    private final int rssiThreshold;
+    private final long reportInterval;
+
+    static final int MAX_DEVICES = 1024;
+
+    // access ordered, so the eldest entry is the device heard from least recently
+    private final Map<String, Report> lastReports = new LinkedHashMap<String, Report>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Report> eldest) {
+            return size() > MAX_DEVICES;
+        }
+    };
+
+    // what we last sent to JavaScript for a device
+    private static class Report {
+        int rssi;
+        long timestamp;
+        byte[] scanRecord;
+    }
+
+    public DuplicateFilter(ScanOptions options) {
+        this.policy = options.getDuplicates();
+        this.rssiThreshold = options.getRssiThreshold();
+        this.reportInterval = options.getReportInterval();
+    }
+
+    public synchronized boolean shouldReport(String address, int rssi, byte[] scanRecord) {
+        if (ScanOptions.DUPLICATES_ALL.equals(policy)) {
+            return true;
+        }
+
+        long now = System.currentTimeMillis();
+        Report report = lastReports.get(address);
+        if (report == null) {
+            report = new Report();
+            lastReports.put(address, report);
+        } else if (!isChanged(report, rssi, scanRecord, now)) {
+            return false;
+        }
+
+        report.rssi = rssi;
+        report.timestamp = now;
+        report.scanRecord = scanRecord;
+        return true;
+    }
+
+    private boolean isChanged(Report report, int rssi, byte[] scanRecord, long now) {
+        switch (policy) {
+            case ScanOptions.DUPLICATES_RSSI:
+                return Math.abs(rssi - report.rssi) >= rssiThreshold;
+            case ScanOptions.DUPLICATES_INTERVAL:
+                return now - report.timestamp >= reportInterval;
+            case ScanOptions.DUPLICATES_ADVERTISING:
+                return !Arrays.equals(scanRecord, report.scanRecord);
+            case ScanOptions.DUPLICATES_ONCE:
+            default:
+                return false;
+        }
+    }
+
+    public synchronized void clear() {
+        lastReports.clear();
+    }
+}
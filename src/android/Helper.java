@@ -18,13 +18,54 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import org.json.JSONArray;
 
+/*
+ * The decoded arrays are built once for every possible bitmask and shared, so callers must not modify
+ * the JSONArrays returned here.
+ */
 public class Helper {
 
+    private static final JSONArray[] PROPERTIES = new JSONArray[0x100];
+    private static final JSONArray[] CHARACTERISTIC_PERMISSIONS = new JSONArray[0x200];
+    private static final JSONArray[] DESCRIPTOR_PERMISSIONS = new JSONArray[0x200];
+
+    static {
+        for (int i = 0; i < PROPERTIES.length; i++) {
+            PROPERTIES[i] = buildProperties(i);
+        }
+        for (int i = 0; i < CHARACTERISTIC_PERMISSIONS.length; i++) {
+            CHARACTERISTIC_PERMISSIONS[i] = buildCharacteristicPermissions(i);
+            DESCRIPTOR_PERMISSIONS[i] = buildDescriptorPermissions(i);
+        }
+    }
+
     public static JSONArray decodeProperties(BluetoothGattCharacteristic characteristic) {
+        int properties = characteristic.getProperties();
+        if (properties >= 0 && properties < PROPERTIES.length) {
+            return PROPERTIES[properties];
+        }
+        return buildProperties(properties);
+    }
+
+    public static JSONArray decodePermissions(BluetoothGattCharacteristic characteristic) {
+        int permissions = characteristic.getPermissions();
+        if (permissions >= 0 && permissions < CHARACTERISTIC_PERMISSIONS.length) {
+            return CHARACTERISTIC_PERMISSIONS[permissions];
+        }
+        return buildCharacteristicPermissions(permissions);
+    }
+
+    public static JSONArray decodePermissions(BluetoothGattDescriptor descriptor) {
+        int permissions = descriptor.getPermissions();
+        if (permissions >= 0 && permissions < DESCRIPTOR_PERMISSIONS.length) {
+            return DESCRIPTOR_PERMISSIONS[permissions];
+        }
+        return buildDescriptorPermissions(permissions);
+    }
+
+    private static JSONArray buildProperties(int properties) {
 
         // NOTE: props strings need to be consistent across iOS and Android
         JSONArray props = new JSONArray();
-        int properties = characteristic.getProperties();
 
         if ((properties & BluetoothGattCharacteristic.PROPERTY_BROADCAST) != 0x0 ) {
             props.put("Broadcast");
@@ -72,11 +113,10 @@ public class Helper {
         return props;
     }
 
-    public static JSONArray decodePermissions(BluetoothGattCharacteristic characteristic) {
+    private static JSONArray buildCharacteristicPermissions(int permissions) {
 
         // NOTE: props strings need to be consistent across iOS and Android
         JSONArray props = new JSONArray();
-        int permissions = characteristic.getPermissions();
 
         if ((permissions & BluetoothGattCharacteristic.PERMISSION_READ) != 0x0 ) {
             props.put("Read");
@@ -113,11 +153,10 @@ public class Helper {
         return props;
     }
 
-    public static JSONArray decodePermissions(BluetoothGattDescriptor descriptor) {
+    private static JSONArray buildDescriptorPermissions(int permissions) {
 
         // NOTE: props strings need to be consistent across iOS and Android
         JSONArray props = new JSONArray();
-        int permissions = descriptor.getPermissions();
 
         if ((permissions & BluetoothGattDescriptor.PERMISSION_READ) != 0x0 ) {
             props.put("Read");
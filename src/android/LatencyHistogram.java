@@ -0,0 +1,110 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations in microseconds with power of two buckets. Bucket n counts
+ * durations from 2^n up to 2^(n+1) microseconds, bucket 0 also takes anything under 1us.
+ * Percentiles are reported as the upper bound of the bucket they fall in, so they are within 2x.
+ */
+class LatencyHistogram {
+
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long micros) {
+        if (micros < 0) {
+            return;
+        }
+        int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long current;
+        while (micros > (current = max.get()) && !max.compareAndSet(current, micros)) {
+            // another thread raised max, try again
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    // times in milliseconds
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        int highest = -1;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+            if (snapshot[i] > 0) {
+                highest = i;
+            }
+        }
+
+        try {
+            json.put("count", total);
+            if (total > 0) {
+                json.put("mean", sum.get() / 1000.0 / count.get());
+                json.put("max", max.get() / 1000.0);
+                json.put("p50", percentile(snapshot, total, 0.5));
+                json.put("p90", percentile(snapshot, total, 0.9));
+                json.put("p99", percentile(snapshot, total, 0.99));
+            }
+            JSONArray counts = new JSONArray();
+            for (int i = 0; i <= highest; i++) {
+                counts.put(snapshot[i]);
+            }
+            json.put("buckets", counts);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    private static double percentile(long[] snapshot, long total, double fraction) {
+        long target = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return (1L << (i + 1)) / 1000.0;
+            }
+        }
+        return (1L << BUCKETS) / 1000.0;
+    }
+}
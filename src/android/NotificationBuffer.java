@@ -0,0 +1,116 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces notifications for one subscriber and sends them as a single ArrayBuffer every flushInterval
+ * milliseconds, or sooner when maxBytes would be exceeded.
+ *
+ * Each packet in the batch is framed as a little endian float64 timestamp (milliseconds since the epoch,
+ * taken when the notification arrived), a little endian uint16 length and then the value.
+ */
+class NotificationBuffer {
+
+    static final int FRAME_HEADER = 10;
+    private static final long DEFAULT_FLUSH_INTERVAL = 50;
+    private static final int DEFAULT_MAX_BYTES = 4096;
+
+    private final CallbackContext callbackContext;
+    private final ByteBuffer buffer;
+    private final long flushInterval;
+    private final int maxBytes;
+    private ScheduledFuture<?> flushTask;
+    private BLEStats stats;
+
+    // returns null unless coalescing was requested
+    public static NotificationBuffer fromJSON(CallbackContext callbackContext, JSONObject options) {
+        if (options == null || !(options.has("flushInterval") || options.has("maxBytes"))) {
+            return null;
+        }
+        long flushInterval = options.optLong("flushInterval", DEFAULT_FLUSH_INTERVAL);
+        int maxBytes = options.optInt("maxBytes", DEFAULT_MAX_BYTES);
+        return new NotificationBuffer(callbackContext, flushInterval, maxBytes);
+    }
+
+    public NotificationBuffer(CallbackContext callbackContext, long flushInterval, int maxBytes) {
+        this.callbackContext = callbackContext;
+        // always big enough for one maximum size (512 byte) attribute value
+        this.buffer = ByteBuffer.allocate(Math.max(maxBytes, FRAME_HEADER + 512)).order(ByteOrder.LITTLE_ENDIAN);
+        this.flushInterval = flushInterval;
+        this.maxBytes = maxBytes;
+    }
+
+    // starts the flush timer, called once the subscription is in place. stats may be null.
+    public synchronized void start(BLEStats stats) {
+        this.stats = stats;
+        if (flushInterval > 0 && flushTask == null) {
+            flushTask = BLEScheduler.get().scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public CallbackContext getCallbackContext() {
+        return callbackContext;
+    }
+
+    public synchronized void add(byte[] value, long timestamp) {
+        // a single value bigger than maxBytes still goes out, on its own
+        if (buffer.position() + FRAME_HEADER + value.length > maxBytes) {
+            flush();
+        }
+        buffer.putDouble(timestamp);
+        buffer.putShort((short) value.length);
+        buffer.put(value);
+    }
+
+    public synchronized void flush() {
+        if (buffer.position() == 0) {
+            return;
+        }
+        byte[] batch = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(batch);
+        buffer.clear();
+
+        PluginResult result = new PluginResult(PluginResult.Status.OK, batch);
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+        if (stats != null) {
+            stats.recordBridgeMessages(1);
+        }
+    }
+
+    // sends anything still pending and stops the timer
+    public synchronized void stop() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        flush();
+    }
+}
@@ -0,0 +1,183 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Routes notifications to everyone subscribed to a characteristic.
+ *
+ * Routes are looked up by characteristic UUID, and the instance id tells apart characteristics that share
+ * a UUID, so a notification costs one map lookup no matter how many characteristics are subscribed.
+ * Subscriptions outlive a connection: after a reconnect every route has to be enabled again, which
+ * resolves it to the characteristic instance on the new connection.
+ *
+ * Changes are made while holding the Peripheral lock. dispatch runs on the binder thread without it.
+ */
+class NotificationRouter {
+
+    static class Route {
+        final UUID serviceUUID;
+        final UUID characteristicUUID;
+        final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+        // the characteristic on the current connection, -1 until the descriptor has been written
+        volatile int instanceId = -1;
+
+        Route(UUID serviceUUID, UUID characteristicUUID) {
+            this.serviceUUID = serviceUUID;
+            this.characteristicUUID = characteristicUUID;
+        }
+
+        boolean isEnabled() {
+            return instanceId != -1;
+        }
+    }
+
+    // buffer is null unless notifications are coalesced for this subscriber
+    static class Subscriber {
+        final CallbackContext callbackContext;
+        final NotificationBuffer buffer;
+
+        Subscriber(CallbackContext callbackContext, NotificationBuffer buffer) {
+            this.callbackContext = callbackContext;
+            this.buffer = buffer;
+        }
+
+        // returns true if the value went straight to JavaScript
+        boolean send(byte[] value, long timestamp) {
+            if (buffer != null) {
+                buffer.add(value, timestamp);
+                return false;
+            }
+            PluginResult result = new PluginResult(PluginResult.Status.OK, value);
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+            return true;
+        }
+    }
+
+    private final Map<UUID, List<Route>> routes = new ConcurrentHashMap<UUID, List<Route>>();
+
+    // the route for a service and characteristic as JavaScript named them, or null
+    public Route find(UUID serviceUUID, UUID characteristicUUID) {
+        List<Route> candidates = routes.get(characteristicUUID);
+        if (candidates == null) {
+            return null;
+        }
+        for (Route route : candidates) {
+            if (route.serviceUUID.equals(serviceUUID)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    // called once the descriptor write succeeded
+    public Route enable(UUID serviceUUID, BluetoothGattCharacteristic characteristic) {
+        Route route = find(serviceUUID, characteristic.getUuid());
+        if (route == null) {
+            route = new Route(serviceUUID, characteristic.getUuid());
+            List<Route> candidates = routes.get(characteristic.getUuid());
+            if (candidates == null) {
+                candidates = new CopyOnWriteArrayList<Route>();
+                routes.put(characteristic.getUuid(), candidates);
+            }
+            candidates.add(route);
+        }
+        route.instanceId = characteristic.getInstanceId();
+        return route;
+    }
+
+    public void subscribe(Route route, CallbackContext callbackContext, NotificationBuffer buffer, BLEStats stats) {
+        if (buffer != null) {
+            buffer.start(stats);
+        }
+        route.subscribers.add(new Subscriber(callbackContext, buffer));
+    }
+
+    // drops the route and all its subscribers, returns false if there wasn't one
+    public boolean remove(UUID serviceUUID, UUID characteristicUUID) {
+        Route route = find(serviceUUID, characteristicUUID);
+        if (route == null) {
+            return false;
+        }
+        routes.get(characteristicUUID).remove(route);
+        release(route);
+        return true;
+    }
+
+    // returns the number of messages sent to JavaScript, buffered subscribers send theirs later
+    public int dispatch(BluetoothGattCharacteristic characteristic, byte[] value, long timestamp) {
+        List<Route> candidates = routes.get(characteristic.getUuid());
+        if (candidates == null) {
+            return 0;
+        }
+        int instanceId = characteristic.getInstanceId();
+        for (Route route : candidates) {
+            if (route.instanceId == instanceId) {
+                int sent = 0;
+                for (Subscriber subscriber : route.subscribers) {
+                    if (subscriber.send(value, timestamp)) {
+                        sent++;
+                    }
+                }
+                return sent;
+            }
+        }
+        return 0;
+    }
+
+    // the connection dropped but we are reconnecting, every route has to be enabled again
+    public List<Route> disable() {
+        List<Route> disabled = new ArrayList<Route>();
+        for (List<Route> candidates : routes.values()) {
+            for (Route route : candidates) {
+                route.instanceId = -1;
+                disabled.add(route);
+            }
+        }
+        return disabled;
+    }
+
+    // the connection is gone for good, flushes anything buffered
+    public void clear() {
+        for (List<Route> candidates : routes.values()) {
+            for (Route route : candidates) {
+                release(route);
+            }
+        }
+        routes.clear();
+    }
+
+    // flushes anything buffered, then lets Cordova forget the kept callbacks. JavaScript isn't called.
+    private void release(Route route) {
+        for (Subscriber subscriber : route.subscribers) {
+            if (subscriber.buffer != null) {
+                subscriber.buffer.stop();
+            }
+            subscriber.callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.NO_RESULT));
+        }
+    }
+}
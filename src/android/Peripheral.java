@@ -17,7 +17,7 @@ package com.megster.cordova.ble.central;
 import android.app.Activity;
 
 import android.bluetooth.*;
-import android.content.Context;
+import android.os.Build;
 import android.util.Base64;
 import android.util.Log;
 import org.apache.cordova.CallbackContext;
@@ -27,26 +27,77 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class Peripheral extends BluetoothGattCallback {
 
     public final static UUID CLIENT_CHARACTERISTIC_CONFIGURATION_UUID = UUIDHelper.uuidFromString("2902");
+    // ATT_MTU before any negotiation, each write carries MTU - 3 bytes of data
+    public final static int DEFAULT_MTU = 23;
     private static final String TAG = "Peripheral";
+    // the infamous GATT_ERROR Android reports for most failed connection attempts
+    private static final int GATT_ERROR = 133;
+    // not a GATT status, marks a disconnect caused by our own watchdog so it counts as a timeout rather than an error
+    private static final int TIMED_OUT = -1;
+    private static final Random jitter = new Random();
 
     private BluetoothDevice device;
     private Activity activity;
     private byte[] advertisingData;
     private boolean expectDisconnect = false;
-    private byte reconnectAttempts = 0;
+    private int reconnectAttempts = 0;
+    private boolean reconnecting = false;
+    private ScheduledFuture<?> reconnectTask;
+
+    private Map<String, BLECommand> pendingReads = new HashMap<String, BLECommand>();
+    private ReadCache readCache;
+
+    private BLEStats stats;
+    // System.nanoTime() when each of these started, for stats
+    private long connectStarted;
+    private long discoveryStarted;
+    private long operationStarted;
+    private volatile long lastNotification;
+    private int streamPacketLength;
+
+    // scanning can pause while we are connecting or have commands to get through
+    private ScanScheduler scanScheduler;
+    private boolean connecting = false;
+    private boolean busy = false;
+
+    private ScheduledFuture<?> watchdog;
+    private int watchdogGeneration;
     private int advertisingRSSI;
-    private boolean connected = false;
+    private volatile boolean connected = false;
     private boolean servicesDiscovered = false;
     private boolean processing = false;
 
     BluetoothGatt gatt;
+    private CharacteristicIndex characteristicIndex;
+    private JSONArray servicesJSON;
+    private JSONArray characteristicsJSON;
 
-    private CallbackContext commandContext;
-    private CallbackContext notifyContext;
+    private ConnectOptions connectOptions = new ConnectOptions();
+    private ServiceCache serviceCache;
+    private boolean connectResolved = false;
+    private ConnectionPriorityController priorityController;
+
+    private CallbackContext connectCallback;
+    private CallbackContext disconnectCallback;
+    private final NotificationRouter notifications = new NotificationRouter();
+
+    // Android only allows one GATT operation in flight, everything else waits here
+    private final Deque<BLECommand> commandQueue = new ArrayDeque<BLECommand>();
+    private BLECommand currentCommand;
+
+    private int mtu = DEFAULT_MTU;
+    private boolean negotiatingMtu = false;
+
+    // progress of the WRITE_STREAM command in flight
+    private BluetoothGattCharacteristic streamCharacteristic;
+    private int streamOffset;
+    private int streamReportedPercent;
 
     public Peripheral(BluetoothDevice device, int advertisingRSSI, byte[] scanRecord) {
         this.device = device;
@@ -57,33 +108,71 @@ public class Peripheral extends BluetoothGattCallback {
 
     // COMMANDS
 
-    public void connect(CallbackContext callbackContext, Activity activity) {
+    public synchronized void connect(CallbackContext callbackContext, Activity activity, ConnectOptions options, BLEStats stats,
+                                     ScanScheduler scanScheduler) {
         Log.d(TAG, "Attempting to establish new connection to locker: " + reconnectAttempts);
-        commandContext = callbackContext;
+        connectCallback = callbackContext;
+        this.stats = stats;
+        this.scanScheduler = scanScheduler;
+        connectOptions = options;
         expectDisconnect = false;
+        servicesDiscovered = false;
+        connectResolved = false;
+        mtu = DEFAULT_MTU;
+        negotiatingMtu = false;
         processing = true;
         this.activity = activity;
+        if (options.isCacheServices()) {
+            serviceCache = new ServiceCache(activity);
+        }
+        priorityController = ConnectionPriorityController.fromJSON(this, options.getAdaptivePriority());
+        readCache = ReadCache.fromJSON(options.getReadCache());
+        pendingReads.clear();
+        reconnectAttempts = 0;
+        reconnecting = false;
+        notifications.clear();
         BluetoothDevice device = this.device;
+        connectStarted = System.nanoTime();
         gatt = device.connectGatt(activity, false, this);
+        armWatchdog(connectOptions.getConnectTimeout(), "connect");
+        connecting = true;
+        updateBusy();
     }
 
-    public void close(CallbackContext callbackContext) {
+    public synchronized void close(CallbackContext callbackContext) {
         Log.d(TAG, "Attempting to disconnect from a locker.");
-        commandContext = callbackContext;
+        disconnectCallback = callbackContext;
         expectDisconnect = true;
         processing = true;
+        if (cancelReconnect()) {
+            Log.d(TAG, "Cancelled reconnect");
+            failPendingCommands("Peripheral " + device.getAddress() + " disconnected");
+            notifications.clear();
+            connecting = false;
+            updateBusy();
+            connectCancelled();
+            disconnectCallback.success();
+            return;
+        }
         // should we be checking that gatt isn't null here? Feels like that should never be the case
         // and if it is there is a logic issue which needs to be fixed.
         if (gatt == null) {
             Log.d(TAG, "GATT is null, we are already disconnected");
-            commandContext.success();
+            disconnectCallback.success();
             return;
         }
 
-        BluetoothManager bluetoothManager = (BluetoothManager) activity.getSystemService(Context.BLUETOOTH_SERVICE);
-        if (!bluetoothManager.getConnectedDevices(BluetoothProfile.GATT).contains(this.device)) {
-            Log.d(TAG, "I think we are not connected");
-            commandContext.success();
+        // connected is kept up to date by onConnectionStateChange, no need to ask the BluetoothManager
+        if (!connected) {
+            Log.d(TAG, "Not connected, abandoning the connection attempt");
+            cancelWatchdog();
+            gatt.close();
+            failPendingCommands("Peripheral " + device.getAddress() + " disconnected");
+            notifications.clear();
+            connecting = false;
+            updateBusy();
+            connectCancelled();
+            disconnectCallback.success();
             return;
         }
 
@@ -99,41 +188,97 @@ public class Peripheral extends BluetoothGattCallback {
         super.onServicesDiscovered(gatt, status);
         Log.d(TAG, "Attempting to discover locker services"+ status);
 
-        // If we have not been able to discover services what should we do?
+        // If we have not been able to discover services the discovery watchdog will give up on the connection
         if (status != BluetoothGatt.GATT_SUCCESS) {
+            stats.recordError(status);
             return;
         }
+        synchronized (this) {
+            // after Service Changed a command may still be in flight, the watchdog is its timeout
+            if (currentCommand == null) {
+                cancelWatchdog();
+            }
+        }
+        stats.recordDiscovery(elapsedMicros(discoveryStarted));
 
-        PluginResult result = new PluginResult(PluginResult.Status.OK, this.asJSONObject(gatt));
+        servicesJSON = null;
+        JSONObject json = this.asJSONObject(gatt);
         Log.d(TAG, gatt.getServices().toString());
-        commandContext.sendPluginResult(result);
-        servicesDiscovered = true;
-        processing = false;
+
+        // if connect was already resolved from the cache, only tell JavaScript when the table changed
+        boolean changed = true;
+        if (serviceCache != null) {
+            changed = serviceCache.put(device.getAddress(), connectOptions.getCacheKey(), ServiceCache.serviceTable(json));
+        }
+        if (!connectResolved || changed) {
+            resolveConnect(json);
+        }
+
+        synchronized (this) {
+            characteristicIndex = CharacteristicIndex.build(gatt.getServices());
+            servicesDiscovered = true;
+            reconnectAttempts = 0;
+            if (reconnecting) {
+                reconnecting = false;
+                restoreSubscriptions();
+            }
+            if (priorityController != null) {
+                priorityController.start(gatt);
+            }
+            if (currentCommand == null) {
+                processing = false;
+            }
+            connecting = false;
+            next();
+            updateBusy();
+        }
     }
 
-    /*
-     * We don't actually need to do anything here?
-     */
     @Override
-    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+    public synchronized void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
         super.onDescriptorWrite(gatt, descriptor, status);
         Log.d(TAG, "Descriptor write: " +status);
-        if (status == gatt.GATT_SUCCESS) {
-            if (notifyContext != null) {
-                notifyContext.success();
+        BLECommand command = currentCommand;
+        if (command == null || (command.getType() != BLECommand.REGISTER_NOTIFY && command.getType() != BLECommand.REMOVE_NOTIFY)
+                || !descriptor.getCharacteristic().getUuid().equals(command.getCharacteristicUUID())) {
+            Log.d(TAG, "Descriptor write without a pending notify command");
+            return;
+        }
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            stats.recordError(status);
+        }
+
+        if (command.getType() == BLECommand.REMOVE_NOTIFY) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                command.getCallbackContext().success();
+            } else {
+                command.getCallbackContext().error(status);
             }
-            // check if there is an outstanding write command
-        } else {
-            if (status == 133) {
-                commandContext = notifyContext;
-                expectDisconnect = false;
+        } else if (status == BluetoothGatt.GATT_SUCCESS) {
+            NotificationRouter.Route route = notifications.enable(command.getServiceUUID(), descriptor.getCharacteristic());
+            if (!command.isRestore()) {
+                notifications.subscribe(route, command.getCallbackContext(), command.getNotificationBuffer(), stats);
+                subscribed(command.getCallbackContext());
             }
+        } else if (command.isRestore()) {
+            notifications.remove(command.getServiceUUID(), command.getCharacteristicUUID());
+            command.error("Unable to restore notifications for " + command.getCharacteristicUUID() + " status=" + status);
+        } else {
+            command.getCallbackContext().error(status);
         }
+        commandCompleted();
     }
 
+    // synchronized so a quick callback can't see the gatt field before connectGatt has returned
     @Override
-    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+    public synchronized void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
         Log.d(TAG, "onConnectionStateChange: " + status + " : " + newState);
+        if (gatt != this.gatt) {
+            // a connection we already gave up on, e.g. after a watchdog timeout
+            Log.d(TAG, "Ignoring state change for an old connection");
+            gatt.close();
+            return;
+        }
 
         switch (newState) {
             case BluetoothProfile.STATE_CONNECTING:
@@ -147,36 +292,26 @@ public class Peripheral extends BluetoothGattCallback {
                     Log.d(TAG, "You are already connected, nothing to do...");
                     return;
                 }
-                if (!gatt.discoverServices()) {
-                    Log.d(TAG, "Error discovering services of CONNECTED peripheral.");
-                    close(commandContext);
+                connected = true;
+                stats.recordConnect(elapsedMicros(connectStarted));
+                discoveryStarted = System.nanoTime();
+                lastNotification = 0;
+                armWatchdog(connectOptions.getDiscoveryTimeout(), "service discovery");
+                // a bigger MTU has to be agreed before discovery, onMtuChanged carries on from there
+                if (requestMtu(gatt)) {
+                    return;
                 }
+                discoverServices(gatt);
                 return;
             case BluetoothProfile.STATE_DISCONNECTING:
                 Log.d(TAG, "CURRENTLY DISCONNECTING");
                 return;
             case BluetoothProfile.STATE_DISCONNECTED:
                 Log.d(TAG, "SUCCESSFULLY DISCONNECTED");
-                // If we actually issued a disconnect from the door, this is a success, otherwise
-                // we can try to reconnect
-                gatt.close();
-                new java.util.Timer().schedule(
-                        new java.util.TimerTask() {
-                            @Override
-                            public void run() {
-                                connected = false;
-                                if (expectDisconnect) {
-                                    commandContext.success("You have been disconnected from the door: ");
-                                } else {
-                                    commandContext.error("You were unexpectedly disconnected from the door: ");
-                                }
-                            }
-                        },
-                        4000
-                );
+                onDisconnected(gatt, status);
                 return;
             default:
-                commandContext.error("An unexpected response was returned from the new locker connection state");
+                connectCallback.error("An unexpected response was returned from the new locker connection state");
                 Log.d(TAG, "UNEXPECTED STATE" + newState);
         }
 
@@ -189,189 +324,765 @@ public class Peripheral extends BluetoothGattCallback {
 
     }
 
+    // If we actually issued a disconnect from the door, this is a success, otherwise
+    // we can try to reconnect
+    private void onDisconnected(BluetoothGatt gatt, int status) {
+        cancelWatchdog();
+        connecting = false;
+        stats.recordDisconnect();
+        if (status == TIMED_OUT) {
+            stats.recordTimeout();
+        } else if (status != BluetoothGatt.GATT_SUCCESS) {
+            stats.recordError(status);
+        }
+        gatt.close();
+        connected = false;
+        if (priorityController != null) {
+            priorityController.stop();
+        }
+        if (status == GATT_ERROR) {
+            Log.d(TAG, "GATT error 133, the connection attempt failed");
+        }
+        if (!expectDisconnect && scheduleReconnect()) {
+            updateBusy();
+            return;
+        }
+        failPendingCommands("Peripheral " + device.getAddress() + " disconnected");
+        notifications.clear();
+        updateBusy();
+        long delay = connectOptions.getDisconnectDelay();
+        if (delay > 0) {
+            BLEScheduler.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    disconnectCompleted();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } else {
+            disconnectCompleted();
+        }
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        super.onMtuChanged(gatt, mtu, status);
+        Log.d(TAG, "onMtuChanged " + mtu + " status " + status);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.mtu = mtu;
+        }
+        if (negotiatingMtu) {
+            negotiatingMtu = false;
+            discoverServices(gatt);
+        }
+    }
+
+    /*
+     * Called on Android 12 and newer when the peripheral sends Service Changed. Not annotated with
+     * @Override so the plugin still compiles against older SDKs, where it is never called.
+     */
+    public void onServiceChanged(BluetoothGatt gatt) {
+        Log.d(TAG, "Services changed on " + device.getAddress());
+        synchronized (this) {
+            if (serviceCache != null) {
+                serviceCache.remove(device.getAddress(), connectOptions.getCacheKey());
+            }
+            servicesDiscovered = false;
+            characteristicIndex = null;
+            servicesJSON = null;
+            // so discoveryTime measures the rediscovery, not the whole connection
+            discoveryStarted = System.nanoTime();
+            // a command in flight keeps its own timeout, commandCompleted arms this one afterwards
+            if (currentCommand == null) {
+                armWatchdog(connectOptions.getDiscoveryTimeout(), "service discovery");
+            }
+        }
+        if (!gatt.discoverServices()) {
+            Log.d(TAG, "Unable to rediscover services after Service Changed");
+        }
+    }
+
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
         super.onCharacteristicChanged(gatt, characteristic);
         Log.d(TAG, "onCharacteristicChanged " + characteristic);
-        if (commandContext != null) {
-            Log.d(TAG, "We've received a notification for something");
-            PluginResult pr = new PluginResult(PluginResult.Status.OK, characteristic.getValue());
-            pr.setKeepCallback(true);
-            commandContext.sendPluginResult(pr);
+        if (priorityController != null) {
+            priorityController.onNotification(characteristic.getValue().length);
+        }
+        ReadCache cache = readCache;
+        if (cache != null) {
+            cache.put(characteristic.getService().getUuid(), characteristic.getUuid(), characteristic.getValue(), System.currentTimeMillis());
+        }
+        byte[] value = characteristic.getValue();
+        long now = System.nanoTime();
+        long previous = lastNotification;
+        lastNotification = now;
+        stats.recordNotification(previous == 0 ? -1 : (now - previous) / 1000, value.length);
+        stats.recordBridgeMessages(notifications.dispatch(characteristic, value, System.currentTimeMillis()));
+    }
+
+    @Override
+    public synchronized void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        super.onCharacteristicRead(gatt, characteristic, status);
+        Log.d(TAG, "onCharacteristicRead " + characteristic);
+        BLECommand command = currentCommand;
+        if (command == null || command.getType() != BLECommand.READ || !characteristic.getUuid().equals(command.getCharacteristicUUID())) {
+            Log.d(TAG, "Characteristic read without a pending read command");
+            return;
+        }
+
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            stats.recordRead(elapsedMicros(operationStarted));
+            if (readCache != null) {
+                readCache.put(command.getServiceUUID(), command.getCharacteristicUUID(), characteristic.getValue(), System.currentTimeMillis());
+            }
+            command.success(characteristic.getValue());
+        } else {
+            stats.recordError(status);
+            command.error("Error reading " + characteristic.getUuid() + " status=" + status);
         }
+        commandCompleted();
     }
 
     @Override
-    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+    public synchronized void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         super.onCharacteristicWrite(gatt, characteristic, status);
         Log.d(TAG, "onCharacteristicWrite");
-        if (status != BluetoothGatt.GATT_SUCCESS) {
+        BLECommand command = currentCommand;
+        if (command != null && command.getType() == BLECommand.WRITE_STREAM
+                && characteristic.getUuid().equals(command.getCharacteristicUUID())) {
+            onStreamWrite(command, status);
+            return;
+        }
+        if (command == null || !command.isWrite() || !characteristic.getUuid().equals(command.getCharacteristicUUID())) {
+            Log.d(TAG, "Characteristic write without a pending write command");
+            return;
+        }
+
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            stats.recordWrite(elapsedMicros(operationStarted), command.getData().length);
+            command.getCallbackContext().success();
+        } else {
             Log.d(TAG, "ERROR WRITING");
-            commandContext.error(status);
+            stats.recordError(status);
+            command.getCallbackContext().error(status);
         }
+        commandCompleted();
     }
 
-    public void write(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, byte[] data, int writeType) {
-        commandContext = callbackContext;
-        expectDisconnect = false;
-        if (gatt == null) {
-            Log.d(TAG, "gatt is null??");
-            return;
+    /*
+     * A read of a characteristic that already has a read queued or in flight joins that read rather than
+     * queueing another one, and gets the same value. Characteristics in the readCache connect option are
+     * answered from the cache while their value is fresh.
+     */
+    public synchronized void read(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID) {
+        if (readCache != null) {
+            byte[] cached = readCache.get(serviceUUID, characteristicUUID, System.currentTimeMillis());
+            if (cached != null) {
+                Log.d(TAG, "Read " + characteristicUUID + " from cache");
+                callbackContext.success(cached);
+                return;
+            }
         }
 
-        // If we were disconnected in the meantime
-        if (!connected && !servicesDiscovered) {
-            Log.d(TAG, "You have been disconnected");
+        String key = serviceUUID + "|" + characteristicUUID;
+        BLECommand pending = pendingReads.get(key);
+        if (pending != null && !pending.isFinished()) {
+            Log.d(TAG, "Joining the pending read of " + characteristicUUID);
+            pending.addCallbackContext(callbackContext);
             return;
         }
 
-        BluetoothGattService service = gatt.getService(serviceUUID);
-        BluetoothGattCharacteristic characteristic = findWritableCharacteristic(service, characteristicUUID, writeType);
+        BLECommand command = new BLECommand(callbackContext, serviceUUID, characteristicUUID, BLECommand.READ);
+        pendingReads.put(key, command);
+        queueCommand(command);
+    }
 
-        if (characteristic == null) {
-            Log.d(TAG, "characteristics are null");
-            return;
-        }
-        characteristic.setValue(data);
-        characteristic.setWriteType(writeType);
+    public synchronized void write(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, byte[] data, int writeType) {
+        invalidateRead(serviceUUID, characteristicUUID);
+        queueCommand(new BLECommand(callbackContext, serviceUUID, characteristicUUID, data, writeType));
+    }
 
-        if (!gatt.writeCharacteristic(characteristic)) {
-            Log.d(TAG, "Unable to initialize write. This does not mean the write has failed");
+    // data is split into MTU sized packets and written without response, one packet per onCharacteristicWrite
+    public synchronized void writeStream(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, byte[] data) {
+        invalidateRead(serviceUUID, characteristicUUID);
+        queueCommand(new BLECommand(callbackContext, serviceUUID, characteristicUUID, data, BLECommand.WRITE_STREAM));
+    }
+
+    public void removeNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID) {
+        queueCommand(new BLECommand(callbackContext, serviceUUID, characteristicUUID, BLECommand.REMOVE_NOTIFY));
+    }
+
+    // reads asked for after a write must not see the value from before it
+    private void invalidateRead(UUID serviceUUID, UUID characteristicUUID) {
+        pendingReads.remove(serviceUUID + "|" + characteristicUUID);
+        if (readCache != null) {
+            readCache.invalidate(serviceUUID, characteristicUUID);
         }
     }
 
-    // This seems way too complicated
     public void registerNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID) {
-        if (gatt == null) {
-            Log.d(TAG, "BluetoothGatt is null");
-            return;
-        }
+        registerNotifyCallback(callbackContext, serviceUUID, characteristicUUID, null);
+    }
 
-        expectDisconnect = false;
-        notifyContext = callbackContext;
-        BluetoothGattService service = gatt.getService(serviceUUID);
-        BluetoothGattCharacteristic characteristic = findNotifyCharacteristic(service, characteristicUUID);
+    // buffer is optional, when set notifications are coalesced by it instead of being sent one at a time
+    public void registerNotifyCallback(CallbackContext callbackContext, UUID serviceUUID, UUID characteristicUUID, NotificationBuffer buffer) {
+        BLECommand command = new BLECommand(callbackContext, serviceUUID, characteristicUUID, BLECommand.REGISTER_NOTIFY);
+        command.setNotificationBuffer(buffer);
+        queueCommand(command);
+    }
 
-        if (characteristic == null) {
-            Log.d(TAG, "Characteristic " + characteristicUUID + " not found");
-            return;
+    private boolean requestMtu(BluetoothGatt gatt) {
+        int requestedMtu = connectOptions.getMtu();
+        if (requestedMtu <= DEFAULT_MTU || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
         }
-
-
-        // if we were unable to register for notifications
-        if (!gatt.setCharacteristicNotification(characteristic, true)) {
-            Log.d(TAG, "Failed to register notification for ");
-            return;
+        if (!gatt.requestMtu(requestedMtu)) {
+            Log.d(TAG, "Unable to request MTU " + requestedMtu + ", using " + mtu);
+            return false;
         }
+        negotiatingMtu = true;
+        return true;
+    }
 
-        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID);
-        if (!descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) {
-            Log.d(TAG, "unable to set descriptor value");
-            return;
+    private void discoverServices(BluetoothGatt gatt) {
+        resolveConnectFromCache();
+        if (!gatt.discoverServices()) {
+            Log.d(TAG, "Error discovering services of CONNECTED peripheral.");
+            expectDisconnect = false;
+            gatt.disconnect();
         }
+    }
 
-        if (!gatt.writeDescriptor(descriptor)) {
-            Log.d(TAG, "unable to initiate write descriptor");
+    private static long elapsedMicros(long startedNanos) {
+        return (System.nanoTime() - startedNanos) / 1000;
+    }
+
+    // WATCHDOG
+
+    /*
+     * Some chipsets never call back for an operation. One timer per connection covers whatever is
+     * outstanding: the connection attempt, service discovery or the command in flight. A generation
+     * number makes sure a timer that fires late doesn't act on a newer operation.
+     */
+    private synchronized void armWatchdog(long timeout, final String operation) {
+        cancelWatchdog();
+        if (timeout <= 0) {
             return;
         }
+        final int generation = watchdogGeneration;
+        watchdog = BLEScheduler.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                onWatchdogExpired(generation, operation);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
     }
 
-    // HANDLING THE COMMAND QUEUE
+    private synchronized void cancelWatchdog() {
+        watchdogGeneration++;
+        if (watchdog != null) {
+            watchdog.cancel(false);
+            watchdog = null;
+        }
+    }
 
-    private void next() {
-        // check if we are waiting for a command to finish
+    private synchronized void onWatchdogExpired(int generation, String operation) {
+        if (generation != watchdogGeneration) {
+            return;
+        }
+        watchdog = null;
+        if (expectDisconnect && !connected) {
+            // close() already closed the gatt and reported the disconnect
+            return;
+        }
+        Log.d(TAG, "Timed out waiting for " + operation + " on " + device.getAddress());
+
+        BLECommand command = currentCommand;
+        if (command != null) {
+            currentCommand = null;
+            command.error("Timed out waiting for " + operation);
+            if (!connectOptions.isResetOnTimeout()) {
+                stats.recordTimeout();
+                commandCompleted();
+                return;
+            }
+        }
 
-        // if there are no further commands queued, we can exit
+        // a stuck connection attempt or discovery, or a stuck command with resetOnTimeout, drops the link.
+        // Once closed Android won't call back, so handle the disconnect here.
+        gatt.disconnect();
+        onDisconnected(gatt, TIMED_OUT);
+    }
 
+    private long commandTimeout(BLECommand command) {
+        if (command.getType() == BLECommand.READ) {
+            return connectOptions.getReadTimeout();
+        } else if (command.getType() == BLECommand.REGISTER_NOTIFY || command.getType() == BLECommand.REMOVE_NOTIFY) {
+            return connectOptions.getDescriptorTimeout();
+        }
+        return connectOptions.getWriteTimeout();
     }
 
+    // RECONNECTING
 
+    /*
+     * Called after an unexpected disconnect (including status 133 while connecting). Returns false when
+     * there are no attempts left and the disconnect should be reported. Direct connection attempts back off
+     * exponentially with jitter; after that the autoConnect option hands the device to the system, which
+     * reconnects in the background whenever it comes back in range.
+     */
+    private synchronized boolean scheduleReconnect() {
+        boolean backgroundFallback = connectOptions.isAutoConnect() && reconnectAttempts >= connectOptions.getReconnectAttempts();
+        if (reconnectAttempts >= connectOptions.getReconnectAttempts() && !backgroundFallback) {
+            reconnecting = false;
+            return false;
+        }
 
+        // whatever was in flight is lost, queued commands wait for the new connection
+        failCurrentCommand("Peripheral " + device.getAddress() + " disconnected");
+        servicesDiscovered = false;
+        characteristicIndex = null;
+        servicesJSON = null;
+        processing = true;
+        reconnecting = true;
+        connectResolved = false;
+        negotiatingMtu = false;
+        mtu = DEFAULT_MTU;
+
+        if (backgroundFallback) {
+            Log.d(TAG, "Waiting for " + device.getAddress() + " to come back with autoConnect");
+            connectStarted = System.nanoTime();
+            gatt = device.connectGatt(activity, true, this);
+            return true;
+        }
 
+        long delay = Math.min(connectOptions.getMaxReconnectDelay(), connectOptions.getReconnectDelay() << Math.min(reconnectAttempts, 16));
+        delay = delay / 2 + (long) (jitter.nextDouble() * (delay / 2));
+        reconnectAttempts++;
+        Log.d(TAG, "Reconnect attempt " + reconnectAttempts + " in " + delay + "ms");
+
+        reconnectTask = BLEScheduler.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Peripheral.this) {
+                    reconnectTask = null;
+                    if (!expectDisconnect) {
+                        connectStarted = System.nanoTime();
+                        gatt = device.connectGatt(activity, false, Peripheral.this);
+                        armWatchdog(connectOptions.getConnectTimeout(), "connect");
+                        connecting = true;
+                        updateBusy();
+                    }
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
 
+    // returns true if a reconnect was pending
+    private synchronized boolean cancelReconnect() {
+        if (!reconnecting) {
+            return false;
+        }
+        reconnecting = false;
+        // a reconnect attempt may have its connect watchdog armed
+        cancelWatchdog();
+        if (reconnectTask != null) {
+            reconnectTask.cancel(false);
+            reconnectTask = null;
+        } else if (gatt != null && !connected) {
+            // a background autoConnect attempt, nothing will call us back if we only disconnect
+            gatt.close();
+        } else {
+            return false;
+        }
+        return true;
+    }
 
+    // re-enables notifications on the new connection without telling JavaScript again,
+    // if that fails every subscriber of the characteristic gets the error
+    private synchronized void restoreSubscriptions() {
+        for (NotificationRouter.Route route : notifications.disable()) {
+            List<NotificationRouter.Subscriber> subscribers = route.subscribers;
+            if (subscribers.isEmpty()) {
+                continue;
+            }
+            BLECommand command = new BLECommand(subscribers.get(0).callbackContext, route.serviceUUID,
+                    route.characteristicUUID, BLECommand.REGISTER_NOTIFY);
+            for (int i = 1; i < subscribers.size(); i++) {
+                command.addCallbackContext(subscribers.get(i).callbackContext);
+            }
+            command.setRestore(true);
+            commandQueue.addFirst(command);
+        }
+    }
 
+    // the GATT connection is closed by the time this runs
+    // close() gave up on a connection attempt, JavaScript is still waiting to hear about it unless it resolved
+    private void connectCancelled() {
+        if (!connectResolved && connectCallback != null) {
+            connectCallback.error("Connection cancelled");
+        }
+    }
 
+    private void disconnectCompleted() {
+        if (expectDisconnect) {
+            if (disconnectCallback != null) {
+                disconnectCallback.success("You have been disconnected from the door: ");
+            }
+        } else if (connectCallback != null) {
+            connectCallback.error("You were unexpectedly disconnected from the door: ");
+        }
+    }
 
+    // keep the connect callback so an unexpected disconnect can still be reported to it
+    private void resolveConnect(JSONObject json) {
+        connectResolved = true;
+        PluginResult result = new PluginResult(PluginResult.Status.OK, json);
+        result.setKeepCallback(true);
+        connectCallback.sendPluginResult(result);
+    }
 
+    // Android still needs discoverServices() before GATT operations work, so commands keep waiting for
+    // onServicesDiscovered; JavaScript just doesn't have to wait to find out what the services are.
+    private void resolveConnectFromCache() {
+        if (serviceCache == null) {
+            return;
+        }
+        JSONObject cached = serviceCache.get(device.getAddress(), connectOptions.getCacheKey());
+        if (cached != null) {
+            Log.d(TAG, "Resolving connect from the service cache");
+            // name, rssi and advertising come from this connection, only the service table is cached
+            JSONObject json = asJSONObject();
+            try {
+                json.put("services", cached.get("services"));
+                json.put("characteristics", cached.get("characteristics"));
+                json.put("mtu", mtu);
+            } catch (JSONException e) {
+                Log.d(TAG, "Ignoring service cache without a service table");
+                return;
+            }
+            resolveConnect(json);
+        }
+    }
 
+    public boolean isConnected() {
+        return connected;
+    }
 
+    // a connection attempt, discovery or reconnect is under way
+    public synchronized boolean isConnecting() {
+        return connecting || reconnecting;
+    }
 
+    public synchronized int getPendingCommandCount() {
+        return commandQueue.size() + (currentCommand == null ? 0 : 1);
+    }
 
+    public int getMtu() {
+        return mtu;
+    }
 
+    public boolean isServicesDiscovered() {
+        return servicesDiscovered;
+    }
 
+    // HANDLING THE COMMAND QUEUE
 
+    private synchronized void queueCommand(BLECommand command) {
+        if (gatt == null) {
+            Log.d(TAG, "gatt is null??");
+            command.error("Peripheral " + device.getAddress() + " is not connected.");
+            return;
+        }
+        // once close() has been called, running commands would only get in the way of the disconnect
+        if (expectDisconnect) {
+            command.error("Peripheral " + device.getAddress() + " is disconnecting");
+            return;
+        }
 
+        commandQueue.add(command);
+        next();
+        updateBusy();
+    }
 
+    private synchronized void next() {
+        // check if we are waiting for a command to finish
+        if (processing || !servicesDiscovered) {
+            return;
+        }
 
+        // if there are no further commands queued, we can exit
+        BLECommand command;
+        while ((command = commandQueue.poll()) != null) {
+            operationStarted = System.nanoTime();
+            if (processCommand(command)) {
+                currentCommand = command;
+                processing = true;
+                armWatchdog(commandTimeout(command), command.getName() + " on " + UUIDHelper.uuidToString(command.getCharacteristicUUID()));
+                return;
+            }
+        }
+    }
 
+    private synchronized void commandCompleted() {
+        cancelWatchdog();
+        stats.recordBridgeMessages(1);
+        currentCommand = null;
+        processing = false;
+        if (connected && !servicesDiscovered) {
+            // Service Changed arrived while the command was running and the rediscovery is still going
+            armWatchdog(connectOptions.getDiscoveryTimeout(), "service discovery");
+        }
+        next();
+        updateBusy();
+    }
 
+    /*
+     * Busy from connectGatt until services are discovered, and while commands are queued on a
+     * discovered connection. Commands waiting for a reconnect don't count, the backoff may be long.
+     */
+    private synchronized void updateBusy() {
+        boolean now = connecting || (servicesDiscovered && (currentCommand != null || !commandQueue.isEmpty()));
+        if (now != busy && scanScheduler != null) {
+            busy = now;
+            scanScheduler.setBusy(device.getAddress(), now);
+        }
+    }
 
+    private synchronized void failCurrentCommand(String message) {
+        if (currentCommand != null) {
+            currentCommand.error(message);
+            currentCommand = null;
+        }
+    }
 
+    private synchronized void failPendingCommands(String message) {
+        failCurrentCommand(message);
+        BLECommand command;
+        while ((command = commandQueue.poll()) != null) {
+            command.error(message);
+        }
+        processing = false;
+        servicesDiscovered = false;
+        characteristicIndex = null;
+        servicesJSON = null;
+    }
 
+    // Starts the GATT operation for a command. Returns false if the command was rejected, in which
+    // case its callback has already been notified and the queue can move on.
+    private boolean processCommand(BLECommand command) {
+        UUID serviceUUID = command.getServiceUUID();
+        if (!characteristicIndex.hasService(serviceUUID)) {
+            command.error("Service " + serviceUUID + " not found.");
+            return false;
+        }
 
+        BluetoothGattCharacteristic characteristic;
+        if (command.getType() == BLECommand.REGISTER_NOTIFY || command.getType() == BLECommand.REMOVE_NOTIFY) {
+            characteristic = characteristicIndex.findNotify(serviceUUID, command.getCharacteristicUUID());
+        } else if (command.getType() == BLECommand.READ) {
+            characteristic = characteristicIndex.findReadable(serviceUUID, command.getCharacteristicUUID());
+        } else if (command.getType() == BLECommand.WRITE_STREAM) {
+            characteristic = characteristicIndex.findWritable(serviceUUID, command.getCharacteristicUUID(),
+                    BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        } else {
+            characteristic = characteristicIndex.findWritable(serviceUUID, command.getCharacteristicUUID(), command.getType());
+        }
 
+        if (characteristic == null) {
+            Log.d(TAG, "Characteristic " + command.getCharacteristicUUID() + " not found");
+            command.error("Characteristic " + command.getCharacteristicUUID() + " not found.");
+            return false;
+        }
 
+        if (command.getType() == BLECommand.REGISTER_NOTIFY) {
+            return registerNotify(command, characteristic);
+        } else if (command.getType() == BLECommand.REMOVE_NOTIFY) {
+            return removeNotify(command, characteristic);
+        } else if (command.getType() == BLECommand.READ) {
+            if (!gatt.readCharacteristic(characteristic)) {
+                command.error("Read failed");
+                return false;
+            }
+            return true;
+        }
 
+        // a read that finished while this write was queued may have cached the old value
+        if (readCache != null) {
+            readCache.invalidate(serviceUUID, command.getCharacteristicUUID());
+        }
 
+        if (command.getType() == BLECommand.WRITE_STREAM) {
+            return startStream(command, characteristic);
+        }
 
+        characteristic.setValue(command.getData());
+        characteristic.setWriteType(command.getType());
+        if (priorityController != null) {
+            priorityController.onBytes(command.getData().length);
+        }
 
+        if (!gatt.writeCharacteristic(characteristic)) {
+            Log.d(TAG, "Unable to initialize write");
+            command.error("Write failed");
+            return false;
+        }
+        return true;
+    }
 
+    // WRITE STREAMS
 
+    private boolean startStream(BLECommand command, BluetoothGattCharacteristic characteristic) {
+        streamCharacteristic = characteristic;
+        streamOffset = 0;
+        streamReportedPercent = 0;
+        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
 
+        if (command.getData().length == 0) {
+            command.getCallbackContext().success(streamProgress(command, true));
+            return false;
+        }
+        if (!writeNextPacket(command)) {
+            command.getCallbackContext().error("Write failed");
+            return false;
+        }
+        return true;
+    }
 
+    private boolean writeNextPacket(BLECommand command) {
+        byte[] data = command.getData();
+        int length = Math.min(mtu - 3, data.length - streamOffset);
+        streamCharacteristic.setValue(Arrays.copyOfRange(data, streamOffset, streamOffset + length));
+        operationStarted = System.nanoTime();
+        streamPacketLength = length;
+        if (!gatt.writeCharacteristic(streamCharacteristic)) {
+            Log.d(TAG, "Unable to write stream packet at " + streamOffset);
+            return false;
+        }
+        streamOffset += length;
+        if (priorityController != null) {
+            priorityController.onBytes(length);
+        }
+        return true;
+    }
 
+    // the stack calls onCharacteristicWrite once it has taken a packet, which is when the next one can go
+    private void onStreamWrite(BLECommand command, int status) {
+        CallbackContext callbackContext = command.getCallbackContext();
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.d(TAG, "ERROR WRITING STREAM");
+            stats.recordError(status);
+            callbackContext.error(status);
+            commandCompleted();
+            return;
+        }
+        stats.recordWrite(elapsedMicros(operationStarted), streamPacketLength);
 
+        if (streamOffset >= command.getData().length) {
+            callbackContext.success(streamProgress(command, true));
+            commandCompleted();
+            return;
+        }
 
+        int percent = (int) (100L * streamOffset / command.getData().length);
+        if (percent > streamReportedPercent) {
+            streamReportedPercent = percent;
+            PluginResult result = new PluginResult(PluginResult.Status.OK, streamProgress(command, false));
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+            stats.recordBridgeMessages(1);
+        }
 
+        if (!writeNextPacket(command)) {
+            callbackContext.error("Write failed after " + streamOffset + " bytes");
+            commandCompleted();
+            return;
+        }
+        armWatchdog(connectOptions.getWriteTimeout(), "stream write");
+    }
 
+    private JSONObject streamProgress(BLECommand command, boolean done) {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("bytesSent", streamOffset);
+            json.put("totalBytes", command.getData().length);
+            json.put("done", done);
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        return json;
+    }
 
+    private boolean registerNotify(BLECommand command, BluetoothGattCharacteristic characteristic) {
+        CallbackContext callbackContext = command.getCallbackContext();
 
+        // notifications are already on for this characteristic, another subscriber doesn't need a descriptor write
+        NotificationRouter.Route route = notifications.find(command.getServiceUUID(), characteristic.getUuid());
+        if (route != null && route.isEnabled()) {
+            if (!command.isRestore()) {
+                notifications.subscribe(route, callbackContext, command.getNotificationBuffer(), stats);
+                subscribed(callbackContext);
+            }
+            return false;
+        }
 
+        // if we were unable to register for notifications
+        if (!gatt.setCharacteristicNotification(characteristic, true)) {
+            Log.d(TAG, "Failed to register notification for " + characteristic.getUuid());
+            command.error("Failed to register notification for " + characteristic.getUuid());
+            return false;
+        }
 
+        // characteristics that can only indicate need the indication bit instead
+        byte[] value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == 0) {
+            value = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        }
 
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID);
+        if (descriptor == null || !descriptor.setValue(value)) {
+            Log.d(TAG, "unable to set descriptor value");
+            command.error("Unable to set descriptor value for " + characteristic.getUuid());
+            return false;
+        }
 
-    // Some devices reuse UUIDs across characteristics, so we can't use service.getCharacteristic(characteristicUUID)
-    // instead check the UUID and properties for each characteristic in the service until we find the best match
-    // This function prefers Notify over Indicate
-    private BluetoothGattCharacteristic findNotifyCharacteristic(BluetoothGattService service, UUID characteristicUUID) {
-        BluetoothGattCharacteristic characteristic = null;
-        // Check for Notify first
-        List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-        for (BluetoothGattCharacteristic c : characteristics) {
-            if ((c.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0 && characteristicUUID.equals(c.getUuid())) {
-                characteristic = c;
-                break;
-            }
+        if (!gatt.writeDescriptor(descriptor)) {
+            Log.d(TAG, "unable to initiate write descriptor");
+            command.error("Unable to initiate descriptor write for " + characteristic.getUuid());
+            return false;
         }
-        return characteristic;
+        return true;
     }
 
-    // Some peripherals re-use UUIDs for multiple characteristics so we need to check the properties
-    // and UUID of all characteristics instead of using service.getCharacteristic(characteristicUUID)
-    private BluetoothGattCharacteristic findWritableCharacteristic(BluetoothGattService service, UUID characteristicUUID, int writeType) {
-        BluetoothGattCharacteristic characteristic = null;
-
-        // get write property
-        int writeProperty = BluetoothGattCharacteristic.PROPERTY_WRITE;
-        if (writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
-            writeProperty = BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
+    // removes every subscriber of the characteristic and turns notifications off on the peripheral
+    private boolean removeNotify(BLECommand command, BluetoothGattCharacteristic characteristic) {
+        CallbackContext callbackContext = command.getCallbackContext();
+        if (!notifications.remove(command.getServiceUUID(), characteristic.getUuid())) {
+            callbackContext.success();
+            return false;
         }
 
-        List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
-        for (BluetoothGattCharacteristic c : characteristics) {
-            if ((c.getProperties() & writeProperty) != 0 && characteristicUUID.equals(c.getUuid())) {
-                characteristic = c;
-                break;
-            }
+        gatt.setCharacteristicNotification(characteristic, false);
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIGURATION_UUID);
+        if (descriptor == null || !descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
+            callbackContext.error("Unable to set descriptor value for " + characteristic.getUuid());
+            return false;
         }
 
-        // As a last resort, try and find ANY characteristic with this UUID, even if it doesn't have the correct properties
-        if (characteristic == null) {
-            characteristic = service.getCharacteristic(characteristicUUID);
+        if (!gatt.writeDescriptor(descriptor)) {
+            callbackContext.error("Unable to initiate descriptor write for " + characteristic.getUuid());
+            return false;
         }
+        return true;
+    }
 
-        return characteristic;
+    // the same callback receives the notifications, so it has to stay open
+    // keeps the callback registered without calling it, JS only sees the notifications
+    private void subscribed(CallbackContext callbackContext) {
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
     }
 
     // --------------------------------------------------------------------------------------------
@@ -379,13 +1090,23 @@ public class Peripheral extends BluetoothGattCallback {
     // --------------------------------------------------------------------------------------------
 
     public JSONObject asJSONObject()  {
+        return asJSONObject(true, false);
+    }
+
+    // rawAdvertising is the scan record as an ArrayBuffer, parsedAdvertising the decoded AD structures
+    public JSONObject asJSONObject(boolean rawAdvertising, boolean parsedAdvertising)  {
 
         JSONObject json = new JSONObject();
 
         try {
             json.put("name", device.getName());
             json.put("id", device.getAddress()); // mac address
-            json.put("advertising", byteArrayToJSON(advertisingData));
+            if (rawAdvertising) {
+                json.put("advertising", byteArrayToJSON(advertisingData));
+            }
+            if (parsedAdvertising) {
+                json.put("advertisement", new AdvertisingData(advertisingData).toJSON());
+            }
             // TODO real RSSI if we have it, else
             json.put("rssi", advertisingRSSI);
         } catch (JSONException e) { // this shouldn't happen
@@ -400,61 +1121,81 @@ public class Peripheral extends BluetoothGattCallback {
         JSONObject json = asJSONObject();
 
         try {
-            JSONArray servicesArray = new JSONArray();
-            JSONArray characteristicsArray = new JSONArray();
-            json.put("services", servicesArray);
-            json.put("characteristics", characteristicsArray);
+            if (servicesJSON == null) {
+                buildServicesJSON(gatt);
+            }
+            json.put("services", servicesJSON);
+            json.put("characteristics", characteristicsJSON);
+            json.put("mtu", mtu);
+        } catch (JSONException e) { // TODO better error handling
+            e.printStackTrace();
+        }
 
-            if (gatt != null) {
-                for (BluetoothGattService service : gatt.getServices()) {
-                    servicesArray.put(UUIDHelper.uuidToString(service.getUuid()));
+        return json;
+    }
 
-                    for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
-                        JSONObject characteristicsJSON = new JSONObject();
-                        characteristicsArray.put(characteristicsJSON);
+    // The service table only changes when services are discovered again, so it is built once per discovery
+    // and shared by every asJSONObject(gatt) call until then.
+    private synchronized void buildServicesJSON(BluetoothGatt gatt) throws JSONException {
+        JSONArray servicesArray = new JSONArray();
+        JSONArray characteristicsArray = new JSONArray();
 
-                        characteristicsJSON.put("service", UUIDHelper.uuidToString(service.getUuid()));
-                        characteristicsJSON.put("characteristic", UUIDHelper.uuidToString(characteristic.getUuid()));
-                        //characteristicsJSON.put("instanceId", characteristic.getInstanceId());
+        if (gatt != null) {
+            for (BluetoothGattService service : gatt.getServices()) {
+                String serviceUUID = UUIDHelper.uuidToString(service.getUuid());
+                servicesArray.put(serviceUUID);
 
-                        characteristicsJSON.put("properties", Helper.decodeProperties(characteristic));
-                        // characteristicsJSON.put("propertiesValue", characteristic.getProperties());
+                for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                    JSONObject characteristicsJSON = new JSONObject();
+                    characteristicsArray.put(characteristicsJSON);
 
-                        if (characteristic.getPermissions() > 0) {
-                            characteristicsJSON.put("permissions", Helper.decodePermissions(characteristic));
-                            // characteristicsJSON.put("permissionsValue", characteristic.getPermissions());
-                        }
+                    characteristicsJSON.put("service", serviceUUID);
+                    characteristicsJSON.put("characteristic", UUIDHelper.uuidToString(characteristic.getUuid()));
+                    //characteristicsJSON.put("instanceId", characteristic.getInstanceId());
+
+                    characteristicsJSON.put("properties", Helper.decodeProperties(characteristic));
+                    // characteristicsJSON.put("propertiesValue", characteristic.getProperties());
 
-                        JSONArray descriptorsArray = new JSONArray();
+                    if (characteristic.getPermissions() > 0) {
+                        characteristicsJSON.put("permissions", Helper.decodePermissions(characteristic));
+                        // characteristicsJSON.put("permissionsValue", characteristic.getPermissions());
+                    }
+
+                    JSONArray descriptorsArray = null;
 
-                        for (BluetoothGattDescriptor descriptor: characteristic.getDescriptors()) {
-                            JSONObject descriptorJSON = new JSONObject();
-                            descriptorJSON.put("uuid", UUIDHelper.uuidToString(descriptor.getUuid()));
-                            descriptorJSON.put("value", descriptor.getValue()); // always blank
+                    for (BluetoothGattDescriptor descriptor: characteristic.getDescriptors()) {
+                        JSONObject descriptorJSON = new JSONObject();
+                        descriptorJSON.put("uuid", UUIDHelper.uuidToString(descriptor.getUuid()));
+                        descriptorJSON.put("value", descriptor.getValue()); // always blank
 
-                            if (descriptor.getPermissions() > 0) {
-                                descriptorJSON.put("permissions", Helper.decodePermissions(descriptor));
-                                // descriptorJSON.put("permissionsValue", descriptor.getPermissions());
-                            }
-                            descriptorsArray.put(descriptorJSON);
+                        if (descriptor.getPermissions() > 0) {
+                            descriptorJSON.put("permissions", Helper.decodePermissions(descriptor));
+                            // descriptorJSON.put("permissionsValue", descriptor.getPermissions());
                         }
-                        if (descriptorsArray.length() > 0) {
-                            characteristicsJSON.put("descriptors", descriptorsArray);
+                        if (descriptorsArray == null) {
+                            descriptorsArray = new JSONArray();
                         }
+                        descriptorsArray.put(descriptorJSON);
+                    }
+                    if (descriptorsArray != null) {
+                        characteristicsJSON.put("descriptors", descriptorsArray);
                     }
                 }
             }
-        } catch (JSONException e) { // TODO better error handling
-            e.printStackTrace();
         }
 
-        return json;
+        characteristicsJSON = characteristicsArray;
+        servicesJSON = servicesArray;
     }
 
     static JSONObject byteArrayToJSON(byte[] bytes) throws JSONException {
+        return byteArrayToJSON(bytes, 0, bytes.length);
+    }
+
+    static JSONObject byteArrayToJSON(byte[] bytes, int offset, int length) throws JSONException {
         JSONObject object = new JSONObject();
         object.put("CDVType", "ArrayBuffer");
-        object.put("data", Base64.encodeToString(bytes, Base64.NO_WRAP));
+        object.put("data", Base64.encodeToString(bytes, offset, length, Base64.NO_WRAP));
         return object;
     }
 
@@ -0,0 +1,96 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps the last value read from characteristics that rarely change, like device information or
+ * battery level, so reads within the time to live don't go over the air. Only characteristics named
+ * in the readCache connect option are cached. Writes invalidate the value and notifications refresh it.
+ */
+class ReadCache {
+
+    private static final String TAG = "ReadCache";
+
+    private final Map<UUID, Long> timeToLive = new HashMap<UUID, Long>();
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private static class Entry {
+        final byte[] value;
+        final long expires;
+
+        Entry(byte[] value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    // returns null when there is nothing to cache, so callers can skip the cache entirely
+    public static ReadCache fromJSON(JSONObject json) {
+        if (json == null || json.length() == 0) {
+            return null;
+        }
+
+        ReadCache cache = new ReadCache();
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String uuid = keys.next();
+            long ttl = json.optLong(uuid, 0);
+            if (ttl > 0) {
+                cache.timeToLive.put(UUIDHelper.uuidFromString(uuid), ttl);
+            } else {
+                Log.d(TAG, "Ignoring readCache entry for " + uuid);
+            }
+        }
+        return cache.timeToLive.isEmpty() ? null : cache;
+    }
+
+    public synchronized byte[] get(UUID serviceUUID, UUID characteristicUUID, long now) {
+        if (!timeToLive.containsKey(characteristicUUID)) {
+            return null;
+        }
+        Entry entry = entries.get(key(serviceUUID, characteristicUUID));
+        if (entry == null || entry.expires <= now) {
+            return null;
+        }
+        return entry.value;
+    }
+
+    public synchronized void put(UUID serviceUUID, UUID characteristicUUID, byte[] value, long now) {
+        Long ttl = timeToLive.get(characteristicUUID);
+        if (ttl == null || value == null) {
+            return;
+        }
+        entries.put(key(serviceUUID, characteristicUUID), new Entry(value.clone(), now + ttl));
+    }
+
+    public synchronized void invalidate(UUID serviceUUID, UUID characteristicUUID) {
+        if (timeToLive.containsKey(characteristicUUID)) {
+            entries.remove(key(serviceUUID, characteristicUUID));
+        }
+    }
+
+    private static String key(UUID serviceUUID, UUID characteristicUUID) {
+        return serviceUUID + "|" + characteristicUUID;
+    }
+}
@@ -0,0 +1,77 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects discovered devices and sends them to JavaScript as one array, either every batchInterval
+ * milliseconds or as soon as batchSize devices are waiting, whichever comes first.
+ */
+class ScanBatcher {
+
+    private final CallbackContext callbackContext;
+    private final int batchSize;
+    private JSONArray pending = new JSONArray();
+    private ScheduledFuture<?> flushTask;
+
+    public ScanBatcher(CallbackContext callbackContext, ScanOptions options) {
+        this.callbackContext = callbackContext;
+        this.batchSize = options.getBatchSize();
+
+        long interval = options.getBatchInterval();
+        if (interval > 0) {
+            flushTask = BLEScheduler.get().scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void add(JSONObject peripheral) {
+        pending.put(peripheral);
+        if (batchSize > 0 && pending.length() >= batchSize) {
+            flush();
+        }
+    }
+
+    public synchronized void flush() {
+        if (pending.length() == 0) {
+            return;
+        }
+        PluginResult result = new PluginResult(PluginResult.Status.OK, pending);
+        result.setKeepCallback(true);
+        callbackContext.sendPluginResult(result);
+        BLEStats.global().recordBridgeMessages(1);
+        pending = new JSONArray();
+    }
+
+    // sends anything still pending and stops the timer
+    public synchronized void stop() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        flush();
+    }
+}
@@ -0,0 +1,244 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import org.apache.cordova.CallbackContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Starts and stops the radio scan. Every advertisement is handed to a LeScanCallback, whichever API found it,
+ * so duplicate filtering, batching and JSON conversion stay in one place.
+ *
+ * On Lollipop and later BluetoothLeScanner is used: service and manufacturer filters are passed down as
+ * ScanFilters, which chipsets with offloaded filtering apply in the controller, so advertisements that don't
+ * match never wake the app. A reportDelay lets the controller batch results as well. Older devices, and
+ * devices where the new API isn't available, use BluetoothAdapter.startLeScan.
+ */
+abstract class ScanEngine {
+
+    private static final String TAG = "ScanEngine";
+
+    public static ScanEngine create(BluetoothAdapter adapter, BluetoothAdapter.LeScanCallback callback, ScanOptions options) {
+        if (options.isLegacyScan() || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP
+                || adapter.getBluetoothLeScanner() == null) {
+            return new LegacyScanEngine(adapter, callback);
+        }
+        return new LeScannerEngine(adapter, callback);
+    }
+
+    // errors after the scan has started go to callbackContext
+    public abstract void start(CallbackContext callbackContext, UUID[] serviceUUIDs, ScanOptions options);
+
+    public abstract void stop();
+
+    private static class LegacyScanEngine extends ScanEngine {
+
+        private final BluetoothAdapter adapter;
+        private final BluetoothAdapter.LeScanCallback callback;
+
+        LegacyScanEngine(BluetoothAdapter adapter, BluetoothAdapter.LeScanCallback callback) {
+            this.adapter = adapter;
+            this.callback = callback;
+        }
+
+        @Override
+        public void start(CallbackContext callbackContext, UUID[] serviceUUIDs, ScanOptions options) {
+            // filters are applied by the callback, startLeScan only matches 128 bit service UUIDs
+            Log.d(TAG, "Scanning with startLeScan");
+            if (!adapter.startLeScan(callback)) {
+                callbackContext.error("Unable to start scan");
+            }
+        }
+
+        @Override
+        public void stop() {
+            adapter.stopLeScan(callback);
+        }
+    }
+
+    private static class LeScannerEngine extends ScanEngine {
+
+        private final BluetoothAdapter adapter;
+        private final BluetoothAdapter.LeScanCallback callback;
+
+        private BluetoothLeScanner scanner;
+        private CallbackContext callbackContext;
+        private UUID[] serviceUUIDs;
+        private ScanOptions options;
+        // set when the chipset turned down our settings and we went back to startLeScan
+        private ScanEngine fallback;
+
+        private final ScanCallback scanCallback = new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                deliver(result);
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                for (ScanResult result : results) {
+                    deliver(result);
+                }
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                LeScannerEngine.this.onScanFailed(errorCode);
+            }
+        };
+
+        LeScannerEngine(BluetoothAdapter adapter, BluetoothAdapter.LeScanCallback callback) {
+            this.adapter = adapter;
+            this.callback = callback;
+        }
+
+        @Override
+        public synchronized void start(CallbackContext callbackContext, UUID[] serviceUUIDs, ScanOptions options) {
+            this.callbackContext = callbackContext;
+            this.serviceUUIDs = serviceUUIDs;
+            this.options = options;
+            fallback = null;
+            scanner = adapter.getBluetoothLeScanner();
+            if (scanner == null) {
+                callbackContext.error("Unable to start scan, Bluetooth is off");
+                return;
+            }
+            Log.d(TAG, "Scanning with BluetoothLeScanner, offloaded filtering " + adapter.isOffloadedFilteringSupported());
+            scanner.startScan(buildFilters(serviceUUIDs, options), buildSettings(options), scanCallback);
+        }
+
+        @Override
+        public synchronized void stop() {
+            if (fallback != null) {
+                fallback.stop();
+                fallback = null;
+            } else if (scanner != null) {
+                try {
+                    // results still batched in the controller are dropped
+                    scanner.stopScan(scanCallback);
+                } catch (IllegalStateException e) {
+                    // Bluetooth was turned off, the scan is already gone
+                    Log.d(TAG, "stopScan failed: " + e.getMessage());
+                }
+            }
+            scanner = null;
+        }
+
+        private synchronized void onScanFailed(int errorCode) {
+            Log.d(TAG, "Scan failed with error " + errorCode);
+            if (scanner == null) {
+                return;
+            }
+            if (errorCode == ScanCallback.SCAN_FAILED_FEATURE_UNSUPPORTED) {
+                Log.d(TAG, "Scan settings not supported, falling back to startLeScan");
+                scanner = null;
+                fallback = new LegacyScanEngine(adapter, callback);
+                fallback.start(callbackContext, serviceUUIDs, options);
+                return;
+            }
+            scanner = null;
+            callbackContext.error("Scan failed with error " + errorCode);
+        }
+
+        private void deliver(ScanResult result) {
+            ScanRecord record = result.getScanRecord();
+            byte[] bytes = record == null ? new byte[0] : record.getBytes();
+            callback.onLeScan(result.getDevice(), result.getRssi(), bytes);
+        }
+
+        /*
+         * One filter per service, any of which may match, each carrying the manufacturer filter.
+         * No filters at all means report everything.
+         */
+        private List<ScanFilter> buildFilters(UUID[] serviceUUIDs, ScanOptions options) {
+            List<ScanFilter> filters = new ArrayList<ScanFilter>();
+            if (serviceUUIDs != null && serviceUUIDs.length > 0) {
+                for (UUID uuid : serviceUUIDs) {
+                    ScanFilter.Builder builder = new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid));
+                    addManufacturerFilter(builder, options);
+                    filters.add(builder.build());
+                }
+            } else if (options.hasManufacturerFilter()) {
+                ScanFilter.Builder builder = new ScanFilter.Builder();
+                addManufacturerFilter(builder, options);
+                filters.add(builder.build());
+            }
+            return filters;
+        }
+
+        private void addManufacturerFilter(ScanFilter.Builder builder, ScanOptions options) {
+            if (!options.hasManufacturerFilter()) {
+                return;
+            }
+            byte[] data = options.getManufacturerData();
+            byte[] mask = options.getManufacturerDataMask();
+            if (data == null) {
+                data = new byte[0];
+            }
+            if (mask != null && mask.length != data.length) {
+                // ScanFilter wants a mask as long as the data, missing bytes are compared in full
+                byte[] padded = Arrays.copyOf(mask, data.length);
+                for (int i = mask.length; i < data.length; i++) {
+                    padded[i] = (byte) 0xFF;
+                }
+                mask = padded;
+            }
+            builder.setManufacturerData(options.getManufacturerId(), data, mask);
+        }
+
+        private ScanSettings buildSettings(ScanOptions options) {
+            ScanSettings.Builder builder = new ScanSettings.Builder().setScanMode(scanMode(options.getScanMode()));
+            if (options.getReportDelay() > 0) {
+                if (adapter.isOffloadedScanBatchingSupported()) {
+                    builder.setReportDelay(options.getReportDelay());
+                } else {
+                    Log.d(TAG, "Controller can't batch scan results, ignoring reportDelay");
+                }
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                builder.setMatchMode(ScanOptions.MATCH_MODE_STICKY.equals(options.getMatchMode())
+                        ? ScanSettings.MATCH_MODE_STICKY : ScanSettings.MATCH_MODE_AGGRESSIVE);
+            }
+            return builder.build();
+        }
+
+        private int scanMode(String mode) {
+            if (ScanOptions.SCAN_MODE_LOW_POWER.equals(mode)) {
+                return ScanSettings.SCAN_MODE_LOW_POWER;
+            } else if (ScanOptions.SCAN_MODE_BALANCED.equals(mode)) {
+                return ScanSettings.SCAN_MODE_BALANCED;
+            } else if (ScanOptions.SCAN_MODE_OPPORTUNISTIC.equals(mode) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                return ScanSettings.SCAN_MODE_OPPORTUNISTIC;
+            }
+            return ScanSettings.SCAN_MODE_LOW_LATENCY;
+        }
+    }
+}
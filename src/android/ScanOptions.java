@@ -0,0 +1,201 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Options passed to startScanWithOptions. Unknown keys are ignored so older JavaScript keeps working.
+ */
+class ScanOptions {
+
+    // how repeated advertisements from the same device are reported
+    public static final String DUPLICATES_ALL = "all";
+    public static final String DUPLICATES_ONCE = "once";
+    public static final String DUPLICATES_RSSI = "rssi";
+    public static final String DUPLICATES_INTERVAL = "interval";
+    public static final String DUPLICATES_ADVERTISING = "advertising";
+    private static final List<String> DUPLICATES = Arrays.asList(DUPLICATES_ALL, DUPLICATES_ONCE, DUPLICATES_RSSI,
+            DUPLICATES_INTERVAL, DUPLICATES_ADVERTISING);
+
+    // BluetoothLeScanner settings, see ScanEngine
+    public static final String SCAN_MODE_LOW_POWER = "lowPower";
+    public static final String SCAN_MODE_BALANCED = "balanced";
+    public static final String SCAN_MODE_LOW_LATENCY = "lowLatency";
+    public static final String SCAN_MODE_OPPORTUNISTIC = "opportunistic";
+    public static final String MATCH_MODE_AGGRESSIVE = "aggressive";
+    public static final String MATCH_MODE_STICKY = "sticky";
+
+    private String duplicates = DUPLICATES_ALL;
+    private int rssiThreshold = 5;
+    private long reportInterval = 1000;
+
+    // manufacturer data filter, -1 means no filter
+    private int manufacturerId = -1;
+    private byte[] manufacturerData;
+    private byte[] manufacturerDataMask;
+
+    // what to include in each discovered peripheral
+    private boolean rawAdvertising = true;
+    private boolean parseAdvertising = false;
+
+    // batching is off unless one of these is set
+    private int batchSize = 0;
+    private long batchInterval = 0;
+
+    // startLeScan scanned at low latency, so that stays the default
+    private String scanMode = SCAN_MODE_LOW_LATENCY;
+    private long reportDelay = 0;
+    private String matchMode = MATCH_MODE_AGGRESSIVE;
+    private boolean legacyScan = false;
+
+    // duty cycle, scanning for scanWindow out of every scanInterval milliseconds, see ScanScheduler
+    private long scanWindow = 0;
+    private long scanInterval = 0;
+    private boolean pauseWhileBusy = false;
+    private long resumeDelay = 1000;
+
+    public static ScanOptions fromJSON(JSONObject json) throws JSONException {
+        ScanOptions options = new ScanOptions();
+        if (json == null) {
+            return options;
+        }
+
+        options.duplicates = json.optString("duplicates", DUPLICATES_ALL);
+        if (!DUPLICATES.contains(options.duplicates)) {
+            throw new JSONException("Unknown duplicates policy: " + options.duplicates);
+        }
+        options.rssiThreshold = json.optInt("rssiThreshold", options.rssiThreshold);
+        options.reportInterval = json.optLong("reportInterval", options.reportInterval);
+        options.manufacturerId = json.optInt("manufacturerId", options.manufacturerId);
+        options.manufacturerData = optBytes(json, "manufacturerData");
+        options.manufacturerDataMask = optBytes(json, "manufacturerDataMask");
+        options.rawAdvertising = json.optBoolean("rawAdvertising", options.rawAdvertising);
+        options.parseAdvertising = json.optBoolean("parseAdvertising", options.parseAdvertising);
+        options.batchSize = json.optInt("batchSize", options.batchSize);
+        options.batchInterval = json.optLong("batchInterval", options.batchInterval);
+        options.scanMode = json.optString("scanMode", options.scanMode);
+        options.reportDelay = json.optLong("reportDelay", options.reportDelay);
+        options.matchMode = json.optString("matchMode", options.matchMode);
+        options.legacyScan = json.optBoolean("legacyScan", options.legacyScan);
+        options.scanWindow = json.optLong("scanWindow", options.scanWindow);
+        options.scanInterval = json.optLong("scanInterval", options.scanInterval);
+        options.pauseWhileBusy = json.optBoolean("pauseWhileBusy", options.pauseWhileBusy);
+        options.resumeDelay = json.optLong("resumeDelay", options.resumeDelay);
+        return options;
+    }
+
+    public String getDuplicates() {
+        return duplicates;
+    }
+
+    public int getRssiThreshold() {
+        return rssiThreshold;
+    }
+
+    public long getReportInterval() {
+        return reportInterval;
+    }
+
+    public int getManufacturerId() {
+        return manufacturerId;
+    }
+
+    public byte[] getManufacturerData() {
+        return manufacturerData;
+    }
+
+    public byte[] getManufacturerDataMask() {
+        return manufacturerDataMask;
+    }
+
+    public boolean hasManufacturerFilter() {
+        return manufacturerId >= 0;
+    }
+
+    public boolean isRawAdvertising() {
+        return rawAdvertising;
+    }
+
+    public boolean isParseAdvertising() {
+        return parseAdvertising;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getBatchInterval() {
+        return batchInterval;
+    }
+
+    public boolean isBatching() {
+        return batchSize > 1 || batchInterval > 0;
+    }
+
+    public String getScanMode() {
+        return scanMode;
+    }
+
+    public long getReportDelay() {
+        return reportDelay;
+    }
+
+    public String getMatchMode() {
+        return matchMode;
+    }
+
+    public boolean isLegacyScan() {
+        return legacyScan;
+    }
+
+    public long getScanWindow() {
+        return scanWindow;
+    }
+
+    public long getScanInterval() {
+        return scanInterval;
+    }
+
+    public boolean isDutyCycled() {
+        return scanWindow > 0 && scanInterval > scanWindow;
+    }
+
+    public boolean isPauseWhileBusy() {
+        return pauseWhileBusy;
+    }
+
+    public long getResumeDelay() {
+        return resumeDelay;
+    }
+
+    // byte arrays are passed from JavaScript as arrays of numbers
+    private static byte[] optBytes(JSONObject json, String key) {
+        JSONArray array = json.optJSONArray(key);
+        if (array == null) {
+            return null;
+        }
+        byte[] bytes = new byte[array.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) array.optInt(i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,180 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.megster.cordova.ble.central;
+
+import android.bluetooth.BluetoothAdapter;
+import android.util.Log;
+
+import org.apache.cordova.CallbackContext;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the radio actually scans while a scan is requested. With scanWindow and scanInterval the
+ * scan runs for scanWindow out of every scanInterval milliseconds. With pauseWhileBusy it stops while
+ * any peripheral is connecting or has GATT commands queued, so scanning doesn't take radio time from
+ * connection traffic, and starts again once everything has been quiet for resumeDelay.
+ *
+ * Timers run on BLEScheduler. A generation number, bumped by start and stop, makes sure a timer from
+ * an earlier scan does nothing.
+ */
+class ScanScheduler {
+
+    private static final String TAG = "ScanScheduler";
+
+    private final BluetoothAdapter.LeScanCallback callback;
+
+    // addresses of peripherals that are connecting or working through commands
+    private final Set<String> busy = new HashSet<String>();
+    private boolean paused = false;
+    private ScheduledFuture<?> resumeTask;
+
+    private ScanEngine engine;
+    private CallbackContext callbackContext;
+    private UUID[] serviceUUIDs;
+    private ScanOptions options;
+    private int generation;
+    private boolean inWindow;
+    private boolean radioOn;
+    private ScheduledFuture<?> dutyCycleTask;
+
+    public ScanScheduler(BluetoothAdapter.LeScanCallback callback) {
+        this.callback = callback;
+    }
+
+    public synchronized void start(BluetoothAdapter adapter, CallbackContext callbackContext, UUID[] serviceUUIDs, ScanOptions options) {
+        // a new scan replaces the old one, its settings may be different
+        stop();
+        engine = ScanEngine.create(adapter, callback, options);
+        this.callbackContext = callbackContext;
+        this.serviceUUIDs = serviceUUIDs;
+        this.options = options;
+        inWindow = true;
+        if (options.isDutyCycled()) {
+            scheduleDutyCycle(false, options.getScanWindow());
+        }
+        update();
+    }
+
+    public synchronized void stop() {
+        generation++;
+        if (dutyCycleTask != null) {
+            dutyCycleTask.cancel(false);
+            dutyCycleTask = null;
+        }
+        if (radioOn) {
+            engine.stop();
+            radioOn = false;
+        }
+        engine = null;
+        callbackContext = null;
+    }
+
+    public synchronized boolean isScanning() {
+        return engine != null;
+    }
+
+    /*
+     * Called by peripherals whenever they become busy or idle. Pausing happens straight away, resuming
+     * waits until nothing has been busy for resumeDelay, so a burst of commands doesn't restart the scan
+     * between each one. Android throttles apps that start scans too often.
+     */
+    public synchronized void setBusy(String address, boolean isBusy) {
+        boolean changed = isBusy ? busy.add(address) : busy.remove(address);
+        if (!changed) {
+            return;
+        }
+        if (!busy.isEmpty()) {
+            if (resumeTask != null) {
+                resumeTask.cancel(false);
+                resumeTask = null;
+            }
+            if (!paused) {
+                paused = true;
+                runLater(0);
+            }
+        } else if (paused && resumeTask == null) {
+            long delay = options == null ? 0 : options.getResumeDelay();
+            resumeTask = BLEScheduler.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    resume();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void resume() {
+        resumeTask = null;
+        if (busy.isEmpty()) {
+            paused = false;
+            update();
+        }
+    }
+
+    // engine calls are binder calls, keep them off the callers of setBusy
+    private void runLater(long delay) {
+        BLEScheduler.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                update();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // starts or stops the radio to match the duty cycle and busy state
+    private synchronized void update() {
+        if (engine == null) {
+            return;
+        }
+        boolean wanted = inWindow && !(paused && options.isPauseWhileBusy());
+        if (wanted == radioOn) {
+            return;
+        }
+        radioOn = wanted;
+        if (wanted) {
+            Log.d(TAG, "Starting scan");
+            engine.start(callbackContext, serviceUUIDs, options);
+        } else {
+            Log.d(TAG, inWindow ? "Pausing scan while a peripheral is busy" : "Scan window ended");
+            engine.stop();
+        }
+    }
+
+    private void scheduleDutyCycle(final boolean windowStarts, long delay) {
+        final int scheduled = generation;
+        dutyCycleTask = BLEScheduler.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                onDutyCycle(scheduled, windowStarts);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void onDutyCycle(int scheduled, boolean windowStarts) {
+        if (scheduled != generation) {
+            return;
+        }
+        inWindow = windowStarts;
+        update();
+        long next = windowStarts ? options.getScanWindow() : options.getScanInterval() - options.getScanWindow();
+        scheduleDutyCycle(!windowStarts, next);
+    }
+}
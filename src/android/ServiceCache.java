@@ -0,0 +1,84 @@
+// (c) 2104 Don Coleman
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.megster.cordova.ble.central;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps the services and characteristics from Peripheral.asJSONObject(BluetoothGatt) in SharedPreferences,
+ * keyed by MAC address and an optional app supplied version key, so connect can resolve before service
+ * discovery finishes.
+ */
+class ServiceCache {
+
+    private static final String TAG = "ServiceCache";
+    private static final String PREFERENCES = "BLECentralServiceCache";
+
+    private final SharedPreferences preferences;
+
+    public ServiceCache(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    public JSONObject get(String address, String version) {
+        String json = preferences.getString(key(address, version), null);
+        if (json == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(json);
+        } catch (JSONException e) {
+            Log.d(TAG, "Ignoring unreadable service cache for " + address);
+            remove(address, version);
+            return null;
+        }
+    }
+
+    // the part of asJSONObject(gatt) worth caching, rssi, mtu, name and advertising change between connections
+    public static JSONObject serviceTable(JSONObject peripheral) {
+        JSONObject table = new JSONObject();
+        try {
+            table.put("services", peripheral.opt("services"));
+            table.put("characteristics", peripheral.opt("characteristics"));
+        } catch (JSONException e) { // this shouldn't happen
+            e.printStackTrace();
+        }
+        return table;
+    }
+
+    // returns false if the cached table was already the same
+    public boolean put(String address, String version, JSONObject services) {
+        String key = key(address, version);
+        String json = services.toString();
+        if (json.equals(preferences.getString(key, null))) {
+            return false;
+        }
+        preferences.edit().putString(key, json).apply();
+        return true;
+    }
+
+    public void remove(String address, String version) {
+        preferences.edit().remove(key(address, version)).apply();
+    }
+
+    private static String key(String address, String version) {
+        return address + "|" + version;
+    }
+}
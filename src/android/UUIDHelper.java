@@ -15,33 +15,59 @@
 package com.megster.cordova.ble.central;
 
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class UUIDHelper {
 
     // base UUID used to build 128 bit Bluetooth UUIDs
     public static final String UUID_BASE = "0000XXXX-0000-1000-8000-00805f9b34fb";
 
+    // UUID_BASE as bits, a 16 bit UUID goes in bits 32-47 of the most significant half
+    private static final long BASE_MSB = 0x0000000000001000L;
+    private static final long BASE_MSB_MASK = 0xFFFF0000FFFFFFFFL;
+    private static final long BASE_LSB = 0x800000805F9B34FBL;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
     // handle 16 and 128 bit UUIDs
     public static UUID uuidFromString(String uuid) {
 
         if (uuid.length() == 4) {
-            uuid = UUID_BASE.replace("XXXX", uuid);
+            long shortUUID = 0;
+            for (int i = 0; i < 4; i++) {
+                // parseLong would also take a sign, e.g. "-001"
+                int digit = hexDigit(uuid.charAt(i));
+                if (digit < 0) {
+                    throw new IllegalArgumentException("Invalid UUID: " + uuid);
+                }
+                shortUUID = (shortUUID << 4) | digit;
+            }
+            return new UUID((shortUUID << 32) | BASE_MSB, BASE_LSB);
         }
         return UUID.fromString(uuid);
     }
 
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
     // return 16 bit UUIDs where possible
     public static String uuidToString(UUID uuid) {
-        String longUUID = uuid.toString();
-        Pattern pattern = Pattern.compile("0000(.{4})-0000-1000-8000-00805f9b34fb", Pattern.CASE_INSENSITIVE);
-        Matcher matcher = pattern.matcher(longUUID);
-        if (matcher.matches()) {
+        long msb = uuid.getMostSignificantBits();
+        if (uuid.getLeastSignificantBits() == BASE_LSB && (msb & BASE_MSB_MASK) == BASE_MSB) {
             // 16 bit UUID
-            return matcher.group(1);
+            int shortUUID = (int) (msb >>> 32);
+            return new String(new char[] {
+                    HEX[(shortUUID >> 12) & 0xF], HEX[(shortUUID >> 8) & 0xF], HEX[(shortUUID >> 4) & 0xF], HEX[shortUUID & 0xF]
+            });
         } else {
-            return longUUID;
+            return uuid.toString();
         }
     }
 }
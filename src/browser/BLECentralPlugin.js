@@ -11,6 +11,10 @@ module.exports = {
         notSupported();
         if (failure) failure();
     },
+    startScanWithOptions: function(services, options, success, failure) {
+        notSupported();
+        if (failure) failure();
+    },
     stopScan: function(success, failure) {
         notSupported();
         if (failure) failure();
@@ -19,6 +23,10 @@ module.exports = {
         notSupported();
         if (connectFailure) connectFailure();
     },
+    connectWithOptions: function(device_id, options, connectSuccess, connectFailure) {
+        notSupported();
+        if (connectFailure) connectFailure();
+    },
     disconnect: function(device_id, connectSuccess, connectFailure) {
         notSupported();
         if (connectFailure) connectFailure();
@@ -35,10 +43,18 @@ module.exports = {
         notSupported();
         if (failure) failure();
     },
+    writeStream: function(device_id, service_uuid, characteristic_uuid, data, success, failure, progress) {
+        notSupported();
+        if (failure) failure();
+    },
     startNotification: function(device_id, service_uuid, characteristic_uuid, success, failure) {
         notSupported();
         if (failure) failure();
     },
+    startNotificationWithOptions: function(device_id, service_uuid, characteristic_uuid, options, success, failure) {
+        notSupported();
+        if (failure) failure();
+    },
     stopNotifcation: function(device_id, service_uuid, characteristic_uuid, success, failure) {
         notSupported();
         if (failure) failure();
@@ -51,6 +67,10 @@ module.exports = {
         notSupported();
         if (failure) failure();
     },
+    list: function(success, failure) {
+        notSupported();
+        if (failure) failure();
+    },
     showBluetoothSettings: function(success, failure) {
         notSupported();
         if (failure) failure();
@@ -58,5 +78,13 @@ module.exports = {
     enable: function(success, failure) {
         notSupported();
         if (failure) failure();
+    },
+    getStats: function(success, failure) {
+        notSupported();
+        if (failure) failure();
+    },
+    resetStats: function(success, failure) {
+        notSupported();
+        if (failure) failure();
     }
 };
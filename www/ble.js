@@ -47,6 +47,22 @@ function convertToNativeJS(object) {
     });
 }
 
+// Coalesced notifications arrive as one ArrayBuffer of frames, each a little endian float64
+// timestamp, a little endian uint16 length and the value
+function decodeNotificationBatch(buffer) {
+    var view = new DataView(buffer);
+    var packets = [];
+    var offset = 0;
+    while (offset + 10 <= buffer.byteLength) {
+        var timestamp = view.getFloat64(offset, true);
+        var length = view.getUint16(offset + 8, true);
+        offset += 10;
+        packets.push({ timestamp: timestamp, value: buffer.slice(offset, offset + length) });
+        offset += length;
+    }
+    return packets;
+}
+
 module.exports = {
 
     scan: function (services, seconds, success, failure) {
@@ -65,12 +81,22 @@ module.exports = {
         cordova.exec(successWrapper, failure, 'BLE', 'startScan', [services]);
     },
 
+    // options are native only, see README for the supported keys
+    startScanWithOptions: function (services, options, success, failure) {
+        // when batching, native sends an array of peripherals
+        var successWrapper = function(peripheral) {
+            convertToNativeJS(peripheral);
+            success(peripheral);
+        };
+        cordova.exec(successWrapper, failure, 'BLE', 'startScan', [services, options || {}]);
+    },
+
     stopScan: function (success, failure) {
         cordova.exec(success, failure, 'BLE', 'stopScan', []);
     },
 
 
-    // this will probably be removed
+    // connected peripherals
     list: function (success, failure) {
         cordova.exec(success, failure, 'BLE', 'list', []);
     },
@@ -83,6 +109,15 @@ module.exports = {
         cordova.exec(successWrapper, failure, 'BLE', 'connect', [device_id]);
     },
 
+    // options are native only, see README for the supported keys
+    connectWithOptions: function (device_id, options, success, failure) {
+        var successWrapper = function(peripheral) {
+            convertToNativeJS(peripheral);
+            success(peripheral);
+        };
+        cordova.exec(successWrapper, failure, 'BLE', 'connect', [device_id, options || {}]);
+    },
+
     disconnect: function (device_id, success, failure) {
         cordova.exec(success, failure, 'BLE', 'disconnect', [device_id]);
     },
@@ -102,6 +137,21 @@ module.exports = {
         cordova.exec(success, failure, 'BLE', 'writeWithoutResponse', [device_id, service_uuid, characteristic_uuid, value]);
     },
 
+    // value must be an ArrayBuffer of any length, it is sent as a series of packets
+    // progress is optional and called with {bytesSent, totalBytes, done}
+    writeStream: function (device_id, service_uuid, characteristic_uuid, value, success, failure, progress) {
+        var successWrapper = function(status) {
+            if (status.done) {
+                if (success) {
+                    success(status);
+                }
+            } else if (progress) {
+                progress(status);
+            }
+        };
+        cordova.exec(successWrapper, failure, 'BLE', 'writeStream', [device_id, service_uuid, characteristic_uuid, value]);
+    },
+
     // value must be an ArrayBuffer
     writeCommand: function (device_id, service_uuid, characteristic_uuid, value, success, failure) {
         console.log("WARNING: writeCommand is deprecated, use writeWithoutResponse");
@@ -119,6 +169,23 @@ module.exports = {
         cordova.exec(success, failure, 'BLE', 'startNotification', [device_id, service_uuid, characteristic_uuid]);
     },
 
+    // options are native only, see README for the supported keys
+    // when coalescing, success is called with an array of {timestamp, value} packets
+    startNotificationWithOptions: function (device_id, service_uuid, characteristic_uuid, options, success, failure) {
+        options = options || {};
+        // only Android coalesces, and only when one of these is set, otherwise data is the raw value
+        var coalescing = cordova.platformId === 'android' &&
+            (options.flushInterval !== undefined || options.maxBytes !== undefined);
+        var successWrapper = function(data) {
+            if (coalescing && data instanceof ArrayBuffer) {
+                success(decodeNotificationBatch(data));
+            } else {
+                success(data);
+            }
+        };
+        cordova.exec(successWrapper, failure, 'BLE', 'startNotification', [device_id, service_uuid, characteristic_uuid, options]);
+    },
+
     // success callback is called when the descriptor 0x2902 is written
     stopNotification: function (device_id, service_uuid, characteristic_uuid, success, failure) {
         cordova.exec(success, failure, 'BLE', 'stopNotification', [device_id, service_uuid, characteristic_uuid]);
@@ -138,6 +205,15 @@ module.exports = {
 
     showBluetoothSettings: function (success, failure) {
         cordova.exec(success, failure, "BLE", "showBluetoothSettings", []);
+    },
+
+    // native counters and latency histograms, Android only
+    getStats: function (success, failure) {
+        cordova.exec(success, failure, "BLE", "getStats", []);
+    },
+
+    resetStats: function (success, failure) {
+        cordova.exec(success, failure, "BLE", "resetStats", []);
     }
 
 };